@@ -0,0 +1,103 @@
+package com.pablisco.physics;
+
+import com.pablisco.physics.objects.Box;
+import com.pablisco.physics.objects.InsetBox;
+
+import junit.framework.TestCase;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.World;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the estimates of {@link FootprintAnalyzer} against the heap of the device
+ */
+public class FootprintAnalyzerTest extends TestCase {
+
+	private static final int COUNT = 2000;
+
+	/**
+	 * Fraction the estimate can be away from the measured growth of the heap
+	 */
+	private static final double TOLERANCE = 0.2;
+
+	public void testEstimateMatchesHeapGrowth() throws InterruptedException {
+		BasePhysicsObject.setSlimMode(true);
+		final World world = new World(new Vec2(0, 0));
+		// the broad phase keeps its nodes once it has grown, so it doesn't grow while measuring
+		List<Box> boxes = createBoxes(world);
+		for (Box box : boxes) {
+			box.onDestroy(world);
+		}
+		boxes.clear();
+		final List<Box> measured = new ArrayList<>(COUNT);
+		final long before = usedHeap();
+		for (int i = 0; i < COUNT; i++) {
+			measured.add(createBox(world, i));
+		}
+		final long growth = usedHeap() - before;
+		long estimate = 0;
+		for (Box box : measured) {
+			estimate += FootprintAnalyzer.retainedSize(box);
+		}
+		assertTrue("Estimated " + estimate + " bytes, the heap grew " + growth,
+			Math.abs(estimate - growth) <= growth * TOLERANCE);
+	}
+
+	public void testEngineObjectsAreNotCharged() {
+		final Box attached = new Box(10f, 10f);
+		attached.onAttach(new PhysicsEngine());
+		assertEquals(FootprintAnalyzer.retainedSize(new Box(10f, 10f)),
+			FootprintAnalyzer.retainedSize(attached));
+	}
+
+	public void testAttributionDoesNotDependOnOrder() {
+		final Vec2 position = new Vec2(100f, 100f);
+		final Box box = new Box(10f, 10f).setPosition(position);
+		final InsetBox inset = new InsetBox(50f, 50f).setPosition(position);
+		final FootprintAnalyzer.Report first = analyze(box, inset);
+		final FootprintAnalyzer.Report second = analyze(inset, box);
+		assertEquals(first.getBytes(Box.class), second.getBytes(Box.class));
+		assertEquals(first.getBytes(InsetBox.class), second.getBytes(InsetBox.class));
+		assertTrue(first.getSharedBytes() > 0);
+	}
+
+	private static FootprintAnalyzer.Report analyze(PhysicsObject... objects) {
+		final PhysicsEngine engine = new PhysicsEngine();
+		for (PhysicsObject object : objects) {
+			engine.add(object);
+		}
+		engine.prepare();
+		return FootprintAnalyzer.analyze(engine);
+	}
+
+	private static List<Box> createBoxes(World world) {
+		final List<Box> result = new ArrayList<>(COUNT);
+		for (int i = 0; i < COUNT; i++) {
+			result.add(createBox(world, i));
+		}
+		return result;
+	}
+
+	/**
+	 * Boxes are far from each other, the world isn't stepped so there are no contacts anyway
+	 */
+	private static Box createBox(World world, int index) {
+		final Box box = new Box(10f, 10f).setPosition((index % 50) * 100f, (index / 50) * 100f);
+		box.onCreate(world);
+		return box;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			System.runFinalization();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
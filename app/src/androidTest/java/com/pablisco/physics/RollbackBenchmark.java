@@ -0,0 +1,259 @@
+package com.pablisco.physics;
+
+import org.jbox2d.collision.shapes.CircleShape;
+import org.jbox2d.collision.shapes.PolygonShape;
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyDef;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.World;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the cost of rolling back with a {@link RollbackBuffer}: capturing a step, restoring
+ * it and simulating again up to the present, both in one go and spread over frames within the
+ * budget of the buffer, the way the engine does it. Steps take the time and iterations of a
+ * {@link PhysicsEngine} with the same frame rate.
+ * <p/>
+ * The world is a box full of circles being kicked around so they don't fall asleep, which is
+ * the worst case. Like {@link StressHarness}, the {@link Report} can be turned into JSON and
+ * checked (see RollbackBenchmarkTest).
+ */
+public class RollbackBenchmark {
+
+	private static final float RADIUS = 0.5f;
+	private static final float SPACING = 1.5f;
+
+	private int bodies = 500;
+	private int rollbackSteps = 8;
+	private int runs = 50;
+	private int frameRate = 60;
+	private float budget = 0.5f;
+
+	private final Random random = new Random(1);
+
+	/**
+	 * @param bodies number of dynamic circles
+	 * @return self
+	 */
+	public RollbackBenchmark setBodies(int bodies) {
+		this.bodies = bodies;
+		return this;
+	}
+
+	/**
+	 * @param steps how far back each rollback goes
+	 * @return self
+	 */
+	public RollbackBenchmark setRollbackSteps(int steps) {
+		this.rollbackSteps = Math.max(1, steps);
+		return this;
+	}
+
+	/**
+	 * @param runs number of rollbacks measured
+	 * @return self
+	 */
+	public RollbackBenchmark setRuns(int runs) {
+		this.runs = Math.max(1, runs);
+		return this;
+	}
+
+	/**
+	 * @param frameRate frames (steps) per second, which sets the frame budget
+	 * @return self
+	 */
+	public RollbackBenchmark setFrameRate(int frameRate) {
+		this.frameRate = frameRate;
+		return this;
+	}
+
+	/**
+	 * @param fraction see {@link RollbackBuffer#setBudget(float)}
+	 * @return self
+	 */
+	public RollbackBenchmark setBudget(float fraction) {
+		this.budget = fraction;
+		return this;
+	}
+
+	/**
+	 * Runs the benchmark in the calling thread
+	 * @return the results
+	 */
+	public Report run() {
+		// the world is stepped the same way the engine steps it
+		final PhysicsEngine engine = new PhysicsEngine(frameRate);
+		final float frameTime = engine.getStepTime();
+		final int velocityIterations = engine.getVelocityIterations();
+		final int positionIterations = engine.getPositionIterations();
+		final long frameNanos = 1000000000L / frameRate;
+		final World world = createWorld();
+		final RollbackBuffer buffer = new RollbackBuffer(rollbackSteps * 2).setBudget(budget);
+		final PhysicsEngine.StepReplayer replayer = new PhysicsEngine.StepReplayer() {
+			@Override
+			public void onReplay(World world, long step) {
+				// inputs would be applied here
+			}
+		};
+		long step = 0;
+		// warm up and fill the buffer
+		for (int i = 0; i < rollbackSteps * 4; i++) {
+			buffer.capture(world, step, 0);
+			world.step(frameTime, velocityIterations, positionIterations);
+			step++;
+		}
+		final Report report = new Report();
+		report.frameMillis = frameNanos / 1e6;
+		for (int run = 0; run < runs; run++) {
+			kick(world);
+			// a normal frame
+			long start = System.nanoTime();
+			buffer.capture(world, step, 0);
+			report.captureMillis += millisSince(start);
+			start = System.nanoTime();
+			world.step(frameTime, velocityIterations, positionIterations);
+			report.stepMillis += millisSince(start);
+			step++;
+			// everything again at once
+			start = System.nanoTime();
+			buffer.rewind(world, step - rollbackSteps, 0);
+			report.restoreMillis += millisSince(start);
+			start = System.nanoTime();
+			buffer.replay(world, step, 0, replayer, frameTime, velocityIterations,
+				positionIterations, Long.MAX_VALUE / 2);
+			report.resimulateMillis += millisSince(start);
+			// and spread over frames
+			buffer.rewind(world, step - rollbackSteps, 0);
+			boolean done;
+			do {
+				start = System.nanoTime();
+				done = buffer.replay(world, step, 0, replayer, frameTime, velocityIterations,
+					positionIterations, frameNanos);
+				report.maxSpreadFrameMillis = Math.max(report.maxSpreadFrameMillis,
+					millisSince(start));
+				report.spreadFrames++;
+			} while (!done);
+		}
+		report.runs = runs;
+		report.bodies = bodies;
+		report.rollbackSteps = rollbackSteps;
+		report.budget = budget;
+		report.captureMillis /= runs;
+		report.stepMillis /= runs;
+		report.restoreMillis /= runs;
+		report.resimulateMillis /= runs;
+		return report;
+	}
+
+	private World createWorld() {
+		final World world = new World(new Vec2(0, -10f));
+		final int side = (int) Math.ceil(Math.sqrt(bodies));
+		final float size = side * SPACING;
+		final BodyDef definition = new BodyDef();
+		final PolygonShape wall = new PolygonShape();
+		final Body walls = world.createBody(definition);
+		wall.setAsBox(size, 0.5f, new Vec2(0, -0.5f), 0);
+		walls.createFixture(wall, 0);
+		wall.setAsBox(0.5f, size, new Vec2(-size * 0.5f - 0.5f, size), 0);
+		walls.createFixture(wall, 0);
+		wall.setAsBox(0.5f, size, new Vec2(size * 0.5f + 0.5f, size), 0);
+		walls.createFixture(wall, 0);
+		final CircleShape circle = new CircleShape();
+		circle.m_radius = RADIUS;
+		definition.type = BodyType.DYNAMIC;
+		for (int i = 0; i < bodies; i++) {
+			definition.position.set((i % side) * SPACING - size * 0.5f + SPACING * 0.5f,
+				(i / side) * SPACING + SPACING * 0.5f);
+			final Body body = world.createBody(definition);
+			body.createFixture(circle, 1f).setRestitution(0.5f);
+		}
+		return world;
+	}
+
+	private void kick(World world) {
+		final Vec2 impulse = new Vec2();
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() == BodyType.DYNAMIC && random.nextInt(4) == 0) {
+				impulse.set((random.nextFloat() - 0.5f) * 5f, random.nextFloat() * 5f);
+				body.applyLinearImpulse(impulse, body.getWorldCenter());
+			}
+		}
+	}
+
+	private static double millisSince(long start) {
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	/**
+	 * Results of a run, times are averages per rollback unless stated otherwise
+	 */
+	public static final class Report {
+
+		private int runs, bodies, rollbackSteps;
+		private float budget;
+		private double frameMillis;
+		private double captureMillis, stepMillis, restoreMillis, resimulateMillis;
+		private double maxSpreadFrameMillis;
+		private int spreadFrames;
+
+		public double getCaptureMillis() {
+			return captureMillis;
+		}
+
+		public double getRestoreMillis() {
+			return restoreMillis;
+		}
+
+		/**
+		 * @return time to simulate all the steps again at once
+		 */
+		public double getResimulateMillis() {
+			return resimulateMillis;
+		}
+
+		/**
+		 * @return the longest time spent in a frame when spreading the steps over frames
+		 */
+		public double getMaxSpreadFrameMillis() {
+			return maxSpreadFrameMillis;
+		}
+
+		/**
+		 * @return average number of frames needed to catch up with the present
+		 */
+		public double getFramesPerRollback() {
+			return (double) spreadFrames / runs;
+		}
+
+		/**
+		 * @return true if restoring and simulating again fits in a frame, at once or spread
+		 */
+		public boolean passed() {
+			return restoreMillis + maxSpreadFrameMillis <= frameMillis;
+		}
+
+		/**
+		 * @return the report as a JSON object
+		 */
+		public String toJson() {
+			return String.format(Locale.US, "{\"passed\":%b,\"runs\":%d,\"bodies\":%d,"
+					+ "\"rollbackSteps\":%d,\"frameMillis\":%.3f,\"budget\":%.2f,"
+					+ "\"captureMillis\":%.3f,\"stepMillis\":%.3f,\"restoreMillis\":%.3f,"
+					+ "\"resimulateMillis\":%.3f,"
+					+ "\"spread\":{\"maxFrameMillis\":%.3f,\"framesPerRollback\":%.2f}}",
+				passed(), runs, bodies, rollbackSteps, frameMillis, budget, captureMillis,
+				stepMillis, restoreMillis, resimulateMillis, maxSpreadFrameMillis,
+				getFramesPerRollback());
+		}
+
+		@Override
+		public String toString() {
+			return toJson();
+		}
+
+	}
+
+}
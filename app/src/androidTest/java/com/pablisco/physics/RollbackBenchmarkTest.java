@@ -0,0 +1,22 @@
+package com.pablisco.physics;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Fails the build when rolling back a busy table doesn't fit in a frame
+ */
+public class RollbackBenchmarkTest extends TestCase {
+
+	private static final String TAG = "RollbackBenchmarkTest";
+
+	private static final int BODIES = 200;
+
+	public void testRollbackFitsInFrame() {
+		final RollbackBenchmark.Report report = new RollbackBenchmark().setBodies(BODIES).run();
+		Log.i(TAG, report.toJson());
+		assertTrue(report.toJson(), report.passed());
+	}
+
+}
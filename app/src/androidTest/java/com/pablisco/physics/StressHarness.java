@@ -0,0 +1,359 @@
+package com.pablisco.physics;
+
+import com.pablisco.physics.objects.Box;
+import com.pablisco.physics.objects.CompoundObject;
+import com.pablisco.physics.objects.InsetBox;
+
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.World;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Soak test for {@link PhysicsEngine}. It runs an engine without a view for a while, starting
+ * and stopping it several times, with many tables ({@link CompoundObject}s) and balls being
+ * added and removed all the time and kicked at high speed.
+ * <p/>
+ * The {@link Report} has the 99th percentile of the step time, how much the heap has grown since
+ * the first cycle, how much the number of threads has grown and how many objects are left in the
+ * engine, and bodies in its world, after removing all of them.
+ * It can be turned into JSON and checked against thresholds, which StressHarnessTest does to
+ * catch regressions and leaks.
+ * <p/>
+ * It takes over the {@link StepGate} of the engine to time the steps.
+ */
+public class StressHarness {
+
+	private long duration = 60000;
+	private int cycles = 5;
+	private int tables = 20;
+	private int balls = 200;
+	private int churn = 20;
+	private long churnInterval = 100;
+	private float kickSpeed = 50f;
+
+	private double maxP99StepMillis = 8;
+	private long maxHeapGrowth = 4 * 1024 * 1024;
+	private int maxThreadGrowth = 0;
+
+	private final Random random = new Random(1);
+
+	/**
+	 * @param duration total running time in milliseconds
+	 * @return self
+	 */
+	public StressHarness setDuration(long duration) {
+		this.duration = duration;
+		return this;
+	}
+
+	/**
+	 * @param cycles number of times the engine is started and stopped
+	 * @return self
+	 */
+	public StressHarness setCycles(int cycles) {
+		this.cycles = Math.max(1, cycles);
+		return this;
+	}
+
+	/**
+	 * @param tables number of tables added at the start
+	 * @return self
+	 */
+	public StressHarness setTables(int tables) {
+		this.tables = tables;
+		return this;
+	}
+
+	/**
+	 * @param balls number of balls alive at any time
+	 * @return self
+	 */
+	public StressHarness setBalls(int balls) {
+		this.balls = balls;
+		return this;
+	}
+
+	/**
+	 * @param churn balls removed and added every interval
+	 * @param interval milliseconds between changes
+	 * @return self
+	 */
+	public StressHarness setChurn(int churn, long interval) {
+		this.churn = churn;
+		this.churnInterval = interval;
+		return this;
+	}
+
+	/**
+	 * @param speed of the impulses given to the balls, in world units
+	 * @return self
+	 */
+	public StressHarness setKickSpeed(float speed) {
+		this.kickSpeed = speed;
+		return this;
+	}
+
+	/**
+	 * Limits used by {@link Report#passed()}
+	 * @param p99StepMillis maximum 99th percentile of the step time in milliseconds
+	 * @param heapGrowth maximum bytes the heap can grow after the first cycle
+	 * @param threadGrowth maximum number of threads left behind
+	 * @return self
+	 */
+	public StressHarness setThresholds(double p99StepMillis, long heapGrowth, int threadGrowth) {
+		this.maxP99StepMillis = p99StepMillis;
+		this.maxHeapGrowth = heapGrowth;
+		this.maxThreadGrowth = threadGrowth;
+		return this;
+	}
+
+	/**
+	 * Runs the test in the calling thread, which is blocked for the whole duration.
+	 * @return the results
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public Report run() throws InterruptedException {
+		final int threadsBefore = Thread.activeCount();
+		long heapBefore = 0;
+		final PhysicsEngine engine = new PhysicsEngine();
+		final StepTimer timer = new StepTimer();
+		engine.setStepGate(timer);
+		final List<PhysicsObject> tableObjects = new ArrayList<>(tables);
+		for (int i = 0; i < tables; i++) {
+			tableObjects.add(createTable(i));
+		}
+		engine.addAll(tableObjects);
+		final Deque<Box> alive = new ArrayDeque<>();
+		for (int i = 0; i < balls; i++) {
+			alive.add(createBall());
+		}
+		engine.addAll(alive);
+		long added = tables + balls;
+		long removed = 0;
+		final long cycleDuration = duration / cycles;
+		for (int cycle = 0; cycle < cycles; cycle++) {
+			engine.start();
+			final long end = System.currentTimeMillis() + cycleDuration;
+			while (System.currentTimeMillis() < end) {
+				Thread.sleep(churnInterval);
+				for (int i = 0; i < churn && !alive.isEmpty(); i++) {
+					engine.remove(alive.poll());
+					removed++;
+					Box ball = createBall();
+					engine.add(ball);
+					alive.add(ball);
+					added++;
+				}
+				kick(engine, alive);
+			}
+			engine.stop();
+			// let the thread finish its last frame
+			Thread.sleep(churnInterval + 1000 / engine.getFrameRate());
+			if (cycle == 0) {
+				// the world, its pools and the step timer are in place by now
+				heapBefore = usedHeap();
+			}
+		}
+		// everything out and one more cycle to process it
+		for (Box ball : alive) {
+			engine.remove(ball);
+		}
+		for (PhysicsObject table : tableObjects) {
+			engine.remove(table);
+		}
+		removed += alive.size() + tableObjects.size();
+		alive.clear();
+		tableObjects.clear();
+		engine.start();
+		Thread.sleep(churnInterval);
+		engine.stop();
+		Thread.sleep(churnInterval + 1000 / engine.getFrameRate());
+		final int leaked = engine.getObjectCount();
+		// counted after the last step, objects that forget their bodies show up here
+		final int leakedBodies = engine.getBodyCount();
+		final Report report = new Report();
+		report.steps = timer.count;
+		report.p50StepMillis = timer.percentile(0.5);
+		report.p99StepMillis = timer.percentile(0.99);
+		report.maxStepMillis = timer.percentile(1);
+		report.added = added;
+		report.removed = removed;
+		report.leakedObjects = leaked;
+		report.leakedBodies = leakedBodies;
+		report.heapGrowth = usedHeap() - heapBefore;
+		report.threadGrowth = Thread.activeCount() - threadsBefore;
+		report.maxP99StepMillis = maxP99StepMillis;
+		report.maxHeapGrowth = maxHeapGrowth;
+		report.maxThreadGrowth = maxThreadGrowth;
+		return report;
+	}
+
+	private PhysicsObject createTable(final int index) {
+		final float x = (index % 5) * 600f;
+		final float y = (index / 5) * 400f;
+		return new CompoundObject() {
+			@Override
+			protected List<PhysicsObject> createChildren() {
+				List<PhysicsObject> children = new ArrayList<>();
+				children.add(new InsetBox(500f, 300f)
+					.setPosition(x + 250f, y + 150f)
+					.setType(BodyType.STATIC));
+				for (int i = 0; i < 4; i++) {
+					children.add(new Box(10f, 60f)
+						.setPosition(x + 100f + i * 100f, y + 150f)
+						.setType(BodyType.STATIC));
+				}
+				return children;
+			}
+		};
+	}
+
+	private Box createBall() {
+		final int table = random.nextInt(Math.max(1, tables));
+		final float x = (table % 5) * 600f + 20f + random.nextFloat() * 460f;
+		final float y = (table / 5) * 400f + 20f + random.nextFloat() * 260f;
+		return new Box(8f, 8f).setPosition(x, y).setRestitution(0.9f);
+	}
+
+	private void kick(PhysicsEngine engine, Deque<Box> alive) {
+		for (Box ball : alive) {
+			Body body = ball.getBody();
+			if (body != null && random.nextInt(10) == 0) {
+				engine.applyImpulse(body, (random.nextFloat() - 0.5f) * kickSpeed,
+					(random.nextFloat() - 0.5f) * kickSpeed);
+			}
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Records the duration of each step in a preallocated buffer
+	 */
+	private static final class StepTimer implements StepGate {
+
+		private static final int CAPACITY = 1 << 18;
+
+		private final long[] durations = new long[CAPACITY];
+		private volatile int count;
+		private long start;
+
+		@Override
+		public boolean beforeStep(World world) {
+			start = System.nanoTime();
+			return true;
+		}
+
+		@Override
+		public void afterStep(World world) {
+			if (count < CAPACITY) {
+				durations[count] = System.nanoTime() - start;
+				count++;
+			}
+		}
+
+		double percentile(double fraction) {
+			final int size = count;
+			if (size == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(durations, size);
+			Arrays.sort(sorted);
+			int index = (int) Math.min(size - 1, Math.ceil(fraction * size) - 1);
+			return sorted[Math.max(0, index)] / 1000000.0;
+		}
+
+	}
+
+	/**
+	 * Results of a run
+	 */
+	public static final class Report {
+
+		private int steps;
+		private double p50StepMillis, p99StepMillis, maxStepMillis;
+		private long added, removed;
+		private int leakedObjects, leakedBodies;
+		private long heapGrowth;
+		private int threadGrowth;
+
+		private double maxP99StepMillis;
+		private long maxHeapGrowth;
+		private int maxThreadGrowth;
+
+		public int getSteps() {
+			return steps;
+		}
+
+		public double getP99StepMillis() {
+			return p99StepMillis;
+		}
+
+		/**
+		 * @return objects still in the engine after removing all of them
+		 */
+		public int getLeakedObjects() {
+			return leakedObjects;
+		}
+
+		/**
+		 * @return bodies still in the world after removing all the objects
+		 */
+		public int getLeakedBodies() {
+			return leakedBodies;
+		}
+
+		public long getHeapGrowth() {
+			return heapGrowth;
+		}
+
+		public int getThreadGrowth() {
+			return threadGrowth;
+		}
+
+		/**
+		 * @return true if every value is within the thresholds and no objects or bodies were leaked
+		 */
+		public boolean passed() {
+			return steps > 0 && p99StepMillis <= maxP99StepMillis && heapGrowth <= maxHeapGrowth
+				&& threadGrowth <= maxThreadGrowth && leakedObjects == 0 && leakedBodies == 0;
+		}
+
+		/**
+		 * @return the report as a JSON object
+		 */
+		public String toJson() {
+			return String.format(Locale.US, "{\"passed\":%b,\"steps\":%d,"
+					+ "\"stepMillis\":{\"p50\":%.3f,\"p99\":%.3f,\"max\":%.3f,\"limitP99\":%.3f},"
+					+ "\"objects\":{\"added\":%d,\"removed\":%d,\"leaked\":%d,"
+					+ "\"leakedBodies\":%d},"
+					+ "\"heapGrowth\":{\"bytes\":%d,\"limit\":%d},"
+					+ "\"threadGrowth\":{\"threads\":%d,\"limit\":%d}}",
+				passed(), steps, p50StepMillis, p99StepMillis, maxStepMillis, maxP99StepMillis,
+				added, removed, leakedObjects, leakedBodies, heapGrowth, maxHeapGrowth, threadGrowth,
+				maxThreadGrowth);
+		}
+
+		@Override
+		public String toString() {
+			return toJson();
+		}
+
+	}
+
+}
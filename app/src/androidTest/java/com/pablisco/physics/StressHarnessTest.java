@@ -0,0 +1,23 @@
+package com.pablisco.physics;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Fails the build when the engine leaks objects, bodies, memory or threads, or its steps get
+ * slower, under the load of {@link StressHarness}
+ */
+public class StressHarnessTest extends TestCase {
+
+	private static final String TAG = "StressHarnessTest";
+
+	public void testSoak() throws InterruptedException {
+		final StressHarness.Report report = new StressHarness().run();
+		Log.i(TAG, report.toJson());
+		assertEquals("Leaked objects", 0, report.getLeakedObjects());
+		assertEquals("Leaked bodies", 0, report.getLeakedBodies());
+		assertTrue(report.toJson(), report.passed());
+	}
+
+}
@@ -10,8 +10,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.pablisco.physics.PhysicsEngine;
+import com.pablisco.physics.PhysicsObject;
+import com.pablisco.physics.Preloader;
+import com.pablisco.physics.SleepPolicy;
+import com.pablisco.physics.objects.InsetBox;
 import com.pablisco.physics.ui.PhysicsView;
 
+import org.jbox2d.dynamics.BodyType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import static android.graphics.Color.BLUE;
 import static android.graphics.Color.RED;
 import static android.view.Window.FEATURE_NO_TITLE;
@@ -60,12 +71,24 @@ public class GameActivity extends Activity {
 		// let's go fullscreen
 		requestWindowFeature(FEATURE_NO_TITLE);
 		getWindow().setFlags(FLAG_FULLSCREEN, FLAG_FULLSCREEN);
+		// get the engine ready while the layout is inflated
+		physicsEngine = new PhysicsEngine();
+		// nothing to simulate between shots once the balls have stopped
+		physicsEngine.setSleepPolicy(new SleepPolicy()
+			.setFreeze(0.25f)
+			.setPauseWhenSettled(true));
+		Preloader.prepareInBackground(physicsEngine, new Callable<Collection<PhysicsObject>>() {
+			@Override
+			public Collection<PhysicsObject> call() {
+				return createTable();
+			}
+		});
 		setContentView(R.layout.activity_game);
 		// gather views
 		scoreView = (TextView) findViewById(R.id.score_view);
 		ballsView = (TextView) findViewById(R.id.balls_view);
 		physicsView = (PhysicsView) findViewById(R.id.physics_view);
-		physicsEngine = physicsView.getPhysicsEngine();
+		physicsView.setPhysicsEngine(physicsEngine);
 
 		// process extras
 		final Bundle extras = getIntent().getExtras();
@@ -91,6 +114,22 @@ public class GameActivity extends Activity {
 		physicsEngine.stop();
 	}
 
+	/**
+	 * Builds the objects of the table. It's called from a background thread.
+	 * <p/>
+	 * The walls are a relative {@link InsetBox} so the preloader can't create their bodies: they
+	 * are created on the first step after the view sets the size of the engine.
+	 * @return objects to add to the engine
+	 */
+	private static Collection<PhysicsObject> createTable() {
+		List<PhysicsObject> table = new ArrayList<>();
+		// walls around the pitch
+		table.add(new InsetBox(1f, 1f).relative()
+			.setRelativePosition(0.5f, 0.5f)
+			.setType(BodyType.STATIC));
+		return table;
+	}
+
 	/**
 	 * Utility method to color the string representation of an object
 	 * @param item object to convert to string
@@ -3,7 +3,6 @@ package com.pablisco.physics;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.util.Log;
 
 import org.jbox2d.common.Vec2;
 import org.jbox2d.dynamics.Body;
@@ -23,12 +22,36 @@ import org.jbox2d.dynamics.World;
  */
 public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implements PhysicsObject {
 
-	private Paint paint = new Paint();
+	/**
+	 * @see #setSlimMode(boolean)
+	 */
+	private static volatile boolean slimMode = true;
+
+	/**
+	 * Id of the style in {@link StyleRegistry}
+	 */
+	private int styleId = StyleRegistry.intern(Color.WHITE, 0f, Paint.Style.FILL);
+
+	/**
+	 * Paint owned by this object or null while it uses the shared one of its style
+	 * @see #getPaint()
+	 */
+	private volatile Paint paint = slimMode ? null : new Paint(StyleRegistry.getPaint(styleId));
+
 	private boolean visible = true;
 
 	private Vec2 position = new Vec2(0, 0);
 	private float rotation = 0f;
 
+	/**
+	 * Transform of the body the last time it was drawn, in meters, and the same position in
+	 * pixels. Pixels are only worked out again when the body or the origin of the world move so
+	 * static and sleeping bodies don't do any work.
+	 */
+	private float drawnX = Float.NaN, drawnY = Float.NaN;
+	private Origin drawnOrigin;
+	private float pixelX, pixelY;
+
 	protected Body body;
 
 	private float density = 0.8f;
@@ -40,18 +63,67 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 	private Vec2 relativePosition;
 
 	/**
-	 * Defines whether we what the object to collide with other objects
+	 * Decides which other objects it collides with
+	 * @see CollisionMatrix
+	 */
+	private int category = CollisionMatrix.DEFAULT;
+
+	/**
+	 * Engine the object is attached to
 	 */
-	private boolean hollow = false;
+	private PhysicsEngine engine;
 
-	{
-		paint.setColor(Color.WHITE);
+	/**
+	 * Matrix of the engine the object is attached to
+	 */
+	private CollisionMatrix collisionMatrix;
+
+	/**
+	 * Slim mode is on by default and objects share the {@link Paint} of their style with any
+	 * other object that looks the same (see {@link StyleRegistry}). When turned off, objects
+	 * created afterwards own a copy each, as they used to, which takes more memory (see
+	 * {@link FootprintAnalyzer}).
+	 * @param slim true to share paints
+	 */
+	public static void setSlimMode(boolean slim) {
+		slimMode = slim;
+	}
+
+	public static boolean isSlimMode() {
+		return slimMode;
 	}
 
 	/* setters with a builder pattern */
 
 	public S setColor(int color) {
-		paint.setColor(color);
+		styleId = StyleRegistry.withColor(styleId, color);
+		final Paint own = paint;
+		if (own != null) {
+			own.setColor(color);
+		}
+		return self();
+	}
+
+	public S setStrokeWidth(float strokeWidth) {
+		styleId = StyleRegistry.withStrokeWidth(styleId, strokeWidth);
+		final Paint own = paint;
+		if (own != null) {
+			own.setStrokeWidth(strokeWidth);
+		}
+		return self();
+	}
+
+	/**
+	 * @param styleId id of a style from {@link StyleRegistry}. If the object has a paint of its
+	 *                own it's reset to the style.
+	 * @return self
+	 */
+	public S setStyleId(int styleId) {
+		this.styleId = styleId;
+		final Paint own = paint;
+		if (own != null) {
+			own.set(StyleRegistry.getPaint(styleId));
+		}
 		return self();
 	}
 
@@ -85,11 +157,37 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 		return self();
 	}
 
+	/**
+	 * Hollow objects don't collide with each other, they are in the
+	 * {@link CollisionMatrix#HOLLOW} category
+	 * @return self
+	 */
 	public S setHollow(boolean hollow) {
-		this.hollow = hollow;
+		if (hollow) {
+			category = CollisionMatrix.HOLLOW;
+		} else if (category == CollisionMatrix.HOLLOW) {
+			category = CollisionMatrix.DEFAULT;
+		}
 		return self();
 	}
 
+	/**
+	 * Must be set before the object is added to the engine
+	 * @param category of the object in the {@link CollisionMatrix} of the engine
+	 * @return self
+	 */
+	public S setCategory(int category) {
+		if (category < 0 || category >= CollisionMatrix.CATEGORIES) {
+			throw new IllegalArgumentException("Invalid category: " + category);
+		}
+		this.category = category;
+		return self();
+	}
+
+	public int getCategory() {
+		return category;
+	}
+
 	public S setPosition(float x, float y) {
 		return setPosition(new Vec2(x, y));
 	}
@@ -144,14 +242,21 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 	@Override
 	public final void draw(Canvas canvas) {
 		if (visible) {
-			position = MeasurementUtil.metersToPixels(body.getPosition());
+			final Vec2 bodyPosition = body.getPosition();
+			final Origin origin = getDrawOrigin();
+			if (bodyPosition.x != drawnX || bodyPosition.y != drawnY || origin != drawnOrigin) {
+				drawnX = bodyPosition.x;
+				drawnY = bodyPosition.y;
+				drawnOrigin = origin;
+				pixelX = MeasurementUtil.worldToPixelX(origin, drawnX);
+				pixelY = MeasurementUtil.worldToPixelY(origin, drawnY);
+			}
 			rotation = body.getAngle();
-			Log.i(this.getClass().getSimpleName(), "draw(canvas)" + position);
 			canvas.save();
 			// move the canvas to the object location
-			canvas.translate(position.x, position.y);
-			// rotate the canvas
-			canvas.rotate(rotation);
+			canvas.translate(pixelX, pixelY);
+			// rotate the canvas, it takes degrees
+			canvas.rotate((float) Math.toDegrees(rotation));
 			// delegate to children
 			onDraw(canvas);
 			// back to normal
@@ -159,6 +264,10 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 		}
 	}
 
+	public boolean isVisible() {
+		return visible;
+	}
+
 	/**
 	 * @return and instance of the current body for external use
 	 */
@@ -166,9 +275,15 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 		return body;
 	}
 
+	@Override
+	public BodyType getBodyType() {
+		return bodyType;
+	}
+
 	@Override
 	public void onAttach(PhysicsEngine engine) {
-		// no op
+		this.engine = engine;
+		collisionMatrix = engine.getCollisionMatrix();
 	}
 
 	@Override
@@ -188,7 +303,8 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 		BodyDef result =  new BodyDef();
 		result.type = bodyType;
 		result.active = true;
-		result.position = MeasurementUtil.pixelToMeters(position);
+		result.position = MeasurementUtil.pixelToWorld(
+			engine != null ? engine.getOrigin() : Origin.ZERO, position);
 		return result;
 	}
 
@@ -215,8 +331,10 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 		fixtureDef.density = density;
 		fixtureDef.friction = friction;
 		fixtureDef.restitution = restitution;
-		if (hollow) {
-			fixtureDef.filter.groupIndex = -1;
+		if (collisionMatrix != null) {
+			collisionMatrix.setup(fixtureDef.filter, category);
+		} else {
+			CollisionMatrix.setupDefault(fixtureDef.filter, category);
 		}
 		return fixtureDef;
 	}
@@ -231,13 +349,65 @@ public abstract class BasePhysicsObject<S extends BasePhysicsObject<S>> implemen
 	}
 
 	/**
-	 * This method can be used by implementations of this type in order to change the type of paint
-	 * to be used. This is not used locally here but serves as a simple way to provide with a paint
-	 * that we can modify if needed.
-	 * @return the paint
+	 * Changes the style of the paint. Implementations should use this instead of modifying the
+	 * result of {@link #getPaint()}, which would give the object a paint of its own.
+	 * @param style used to paint the object
+	 * @return self
+	 */
+	protected S setPaintStyle(Paint.Style style) {
+		styleId = StyleRegistry.withStyle(styleId, style);
+		final Paint own = paint;
+		if (own != null) {
+			own.setStyle(style);
+		}
+		return self();
+	}
+
+	@Override
+	public int getStyleId() {
+		return styleId;
+	}
+
+	/**
+	 * @return origin of the world to convert the position of the body into pixels when drawing
+	 * @see PhysicsEngine#getDrawOrigin()
+	 */
+	protected Origin getDrawOrigin() {
+		final PhysicsEngine engine = this.engine;
+		return engine != null ? engine.getDrawOrigin() : Origin.ZERO;
+	}
+
+	/**
+	 * This method can be used by implementations of this type in order to change the paint of
+	 * the object (i.e. to set a shader). The first call gives the object a paint of its own,
+	 * copied from the shared one of its style, so changes don't affect any other object. Objects
+	 * with a paint of their own are drawn one by one instead of being grouped by style.
+	 * @return the paint of this object
 	 */
 	protected Paint getPaint() {
-		return paint;
+		Paint own = paint;
+		if (own == null) {
+			own = new Paint(StyleRegistry.getPaint(styleId));
+			paint = own;
+		}
+		return own;
+	}
+
+	/**
+	 * @return the paint to draw the object with, either its own or the shared one of its style,
+	 * which must not be modified
+	 */
+	protected Paint getDrawPaint() {
+		final Paint own = paint;
+		return own != null ? own : StyleRegistry.getPaint(styleId);
+	}
+
+	/**
+	 * @return true if the object doesn't share its paint with other objects
+	 * @see #getPaint()
+	 */
+	protected boolean hasOwnPaint() {
+		return paint != null;
 	}
 
 }
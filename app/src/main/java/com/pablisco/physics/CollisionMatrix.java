@@ -0,0 +1,185 @@
+package com.pablisco.physics;
+
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.Filter;
+import org.jbox2d.dynamics.Fixture;
+import org.jbox2d.dynamics.World;
+
+/**
+ * Decides which categories of objects collide with each other (i.e. teams, goals, sensors or
+ * effects). Each {@link PhysicsEngine} has one, see {@link PhysicsEngine#getCollisionMatrix()}.
+ * <p/>
+ * Objects belong to a single category and the matrix is turned into the category and mask bits
+ * of their fixtures when they are created, so pairs that don't collide are rejected by the broad
+ * phase and never become contacts.
+ * <p/>
+ * The matrix can be changed from any thread at any time. Changes are applied to the fixtures
+ * already in the world all at once before the next step, no matter how many there are.
+ * <p/>
+ * There are {@link #CATEGORIES} categories. {@link #DEFAULT} and {@link #HOLLOW} are used by
+ * objects that don't choose one. Hollow objects don't collide with each other.
+ */
+public class CollisionMatrix {
+
+	/**
+	 * Maximum number of categories
+	 */
+	public static final int CATEGORIES = 16;
+
+	/**
+	 * Category of objects unless they choose another one
+	 */
+	public static final int DEFAULT = 0;
+
+	/**
+	 * Category of hollow objects, by default they don't collide with each other
+	 * @see BasePhysicsObject#setHollow(boolean)
+	 */
+	public static final int HOLLOW = 1;
+
+	private static final int ALL = (1 << CATEGORIES) - 1;
+
+	/**
+	 * Categories each category collides with, as bits. Guarded by this.
+	 */
+	private final int[] masks = new int[CATEGORIES];
+
+	/**
+	 * True when there are changes not applied to the world yet. Guarded by this.
+	 */
+	private boolean dirty;
+
+	/**
+	 * Copy of the masks used by the physics thread
+	 */
+	private final int[] applied = new int[CATEGORIES];
+
+	private final Filter filter = new Filter();
+
+	public CollisionMatrix() {
+		for (int i = 0; i < CATEGORIES; i++) {
+			masks[i] = defaultMask(i);
+		}
+		System.arraycopy(masks, 0, applied, 0, CATEGORIES);
+	}
+
+	/**
+	 * @param a a category
+	 * @param b another category, or the same one
+	 * @param collides whether objects of the categories collide with each other
+	 * @return self
+	 */
+	public synchronized CollisionMatrix setCollides(int a, int b, boolean collides) {
+		check(a);
+		check(b);
+		if (collides) {
+			masks[a] |= bit(b);
+			masks[b] |= bit(a);
+		} else {
+			masks[a] &= ~bit(b);
+			masks[b] &= ~bit(a);
+		}
+		dirty = true;
+		return this;
+	}
+
+	/**
+	 * @param category to change
+	 * @param collides whether objects of the category collide with any other objects
+	 * @return self
+	 */
+	public synchronized CollisionMatrix setCollidesWithAll(int category, boolean collides) {
+		for (int other = 0; other < CATEGORIES; other++) {
+			setCollides(category, other, collides);
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if objects of the two categories collide
+	 */
+	public synchronized boolean collides(int a, int b) {
+		check(a);
+		check(b);
+		return (masks[a] & bit(b)) != 0;
+	}
+
+	/**
+	 * @return the category bits of the fixtures of the category
+	 */
+	public static int bit(int category) {
+		return 1 << category;
+	}
+
+	/**
+	 * @return the mask bits of the fixtures of the category before making any changes
+	 */
+	public static int defaultMask(int category) {
+		check(category);
+		return category == HOLLOW ? ALL & ~bit(HOLLOW) : ALL;
+	}
+
+	/**
+	 * @return the mask bits of the fixtures of the category
+	 */
+	public synchronized int getMask(int category) {
+		check(category);
+		return masks[category];
+	}
+
+	/**
+	 * Sets the category and mask bits of a filter, used when defining fixtures
+	 * @param filter of a fixture definition
+	 * @param category of the object
+	 */
+	public void setup(Filter filter, int category) {
+		filter.categoryBits = bit(category);
+		filter.maskBits = getMask(category);
+		filter.groupIndex = 0;
+	}
+
+	/**
+	 * Same as {@link #setup(Filter, int)} for objects not attached to an engine yet
+	 */
+	public static void setupDefault(Filter filter, int category) {
+		filter.categoryBits = bit(category);
+		filter.maskBits = defaultMask(category);
+		filter.groupIndex = 0;
+	}
+
+	/**
+	 * Updates the filters of all the fixtures in the world if the matrix has changed. Called by
+	 * the engine from the physics thread before each step.
+	 * @return true if there were changes
+	 */
+	boolean apply(World world) {
+		synchronized (this) {
+			if (!dirty) {
+				return false;
+			}
+			System.arraycopy(masks, 0, applied, 0, CATEGORIES);
+			dirty = false;
+		}
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			for (Fixture fixture = body.getFixtureList(); fixture != null;
+			     fixture = fixture.getNext()) {
+				Filter current = fixture.getFilterData();
+				int category = Integer.numberOfTrailingZeros(current.categoryBits);
+				if (category < CATEGORIES && current.maskBits != applied[category]) {
+					filter.set(current);
+					filter.maskBits = applied[category];
+					// flags the contacts of the fixture to be filtered again
+					fixture.setFilterData(filter);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void check(int category) {
+		if (category < 0 || category >= CATEGORIES) {
+			throw new IllegalArgumentException("Invalid category: " + category);
+		}
+	}
+
+}
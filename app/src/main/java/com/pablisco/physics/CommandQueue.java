@@ -0,0 +1,246 @@
+package com.pablisco.physics;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer of commands (impulses, forces and teleports) sent to bodies from any thread
+ * and applied by the physics thread before each step.
+ * <p/>
+ * Any number of threads can {@link #offer(int, Body, float, float, float)} commands without
+ * locking and only the physics thread calls {@link #apply()}. Slots are preallocated so no
+ * allocation happens per command. When applied, commands for the same body are coalesced:
+ * impulses and forces are added up and only the last teleport is kept, so a burst of touch events
+ * results in a single change per body. A teleport stops the body so it discards the impulses and
+ * forces queued before it, the ones queued after it are applied once the body has been moved.
+ * Teleports are queued in pixels and converted to meters when applied, with the origin of the
+ * world at that time.
+ */
+final class CommandQueue {
+
+	static final int IMPULSE = 0;
+	static final int FORCE = 1;
+	static final int TELEPORT = 2;
+
+	private final int capacity;
+	private final int mask;
+
+	/* slots */
+
+	private final int[] types;
+	private final Body[] targets;
+	private final float[] xs, ys, angles;
+
+	/**
+	 * Sequence of each slot, used to know if the slot is free for producers or ready for the
+	 * consumer (see Vyukov's bounded queue)
+	 */
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Only accessed by the consumer
+	 */
+	private long head;
+
+	/* coalescing scratch, only accessed by the consumer */
+
+	private final Body[] bodies;
+	private final float[] impulseX, impulseY, forceX, forceY;
+	private final float[] teleportX, teleportY, teleportAngle;
+	private final boolean[] teleports;
+	private final Vec2 vector = new Vec2();
+
+	/**
+	 * Open addressing table from body to coalescing slot, only accessed by the consumer. Entries
+	 * belong to the {@link #generation} of the call to {@link #apply()} that added them so the
+	 * table doesn't need to be cleared between calls.
+	 */
+	private final Body[] tableKeys;
+	private final int[] tableSlots;
+	private final int[] tableGenerations;
+	private final int tableMask;
+	private int generation;
+
+	/**
+	 * Entry of the table used by each coalescing slot
+	 */
+	private final int[] entries;
+
+	/**
+	 * @param capacity maximum number of commands pending, rounded up to a power of two
+	 */
+	CommandQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		types = new int[size];
+		targets = new Body[size];
+		xs = new float[size];
+		ys = new float[size];
+		angles = new float[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		bodies = new Body[size];
+		impulseX = new float[size];
+		impulseY = new float[size];
+		forceX = new float[size];
+		forceY = new float[size];
+		teleportX = new float[size];
+		teleportY = new float[size];
+		teleportAngle = new float[size];
+		teleports = new boolean[size];
+		// at most half full as there are never more bodies than commands
+		tableKeys = new Body[size * 2];
+		tableSlots = new int[size * 2];
+		tableGenerations = new int[size * 2];
+		tableMask = size * 2 - 1;
+		entries = new int[size];
+	}
+
+	/**
+	 * Queues a command. Safe to call from any thread.
+	 * @return false if the queue is full and the command was dropped
+	 */
+	boolean offer(int type, Body body, float x, float y, float angle) {
+		long position;
+		int index;
+		while (true) {
+			position = tail.get();
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (difference < 0) {
+				// the consumer hasn't caught up yet
+				return false;
+			}
+		}
+		types[index] = type;
+		targets[index] = body;
+		xs[index] = x;
+		ys[index] = y;
+		angles[index] = angle;
+		// publish the slot to the consumer
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * Applies all the commands queued so far. Commands queued while this is running are left for
+	 * the next call so it always finishes. Must only be called from the physics thread.
+	 * @param origin of the world, to convert the positions of teleports
+	 * @return number of commands consumed
+	 */
+	int apply(Origin origin) {
+		long end = tail.get();
+		int count = 0;
+		int consumed = 0;
+		if (++generation == 0) {
+			Arrays.fill(tableGenerations, 0);
+			generation = 1;
+		}
+		while (head < end) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				// claimed but not written yet, it'll be picked up next time
+				break;
+			}
+			Body body = targets[index];
+			int slot = slotFor(body, count);
+			if (slot == count) {
+				count++;
+			}
+			switch (types[index]) {
+				case IMPULSE:
+					impulseX[slot] += xs[index];
+					impulseY[slot] += ys[index];
+					break;
+				case FORCE:
+					forceX[slot] += xs[index];
+					forceY[slot] += ys[index];
+					break;
+				case TELEPORT:
+					// the body is stopped so anything queued before doesn't count
+					impulseX[slot] = impulseY[slot] = 0;
+					forceX[slot] = forceY[slot] = 0;
+					teleports[slot] = true;
+					teleportX[slot] = xs[index];
+					teleportY[slot] = ys[index];
+					teleportAngle[slot] = angles[index];
+					break;
+			}
+			targets[index] = null;
+			sequences.lazySet(index, head + capacity);
+			head++;
+			consumed++;
+		}
+		for (int slot = 0; slot < count; slot++) {
+			applyTo(slot, origin);
+		}
+		return consumed;
+	}
+
+	/**
+	 * Finds the coalescing slot of the body, initialising a new one at the end if needed
+	 */
+	private int slotFor(Body body, int count) {
+		int entry = mix(System.identityHashCode(body)) & tableMask;
+		while (tableGenerations[entry] == generation) {
+			if (tableKeys[entry] == body) {
+				return tableSlots[entry];
+			}
+			entry = (entry + 1) & tableMask;
+		}
+		tableGenerations[entry] = generation;
+		tableKeys[entry] = body;
+		tableSlots[entry] = count;
+		entries[count] = entry;
+		bodies[count] = body;
+		impulseX[count] = impulseY[count] = 0;
+		forceX[count] = forceY[count] = 0;
+		teleports[count] = false;
+		return count;
+	}
+
+	private void applyTo(int slot, Origin origin) {
+		Body body = bodies[slot];
+		if (teleports[slot]) {
+			vector.set(MeasurementUtil.pixelToWorldX(origin, teleportX[slot]),
+				MeasurementUtil.pixelToWorldY(origin, teleportY[slot]));
+			body.setTransform(vector, teleportAngle[slot]);
+			vector.setZero();
+			body.setLinearVelocity(vector);
+			body.setAngularVelocity(0);
+			body.setAwake(true);
+		}
+		if (impulseX[slot] != 0 || impulseY[slot] != 0) {
+			vector.set(impulseX[slot], impulseY[slot]);
+			body.applyLinearImpulse(vector, body.getWorldCenter());
+		}
+		if (forceX[slot] != 0 || forceY[slot] != 0) {
+			vector.set(forceX[slot], forceY[slot]);
+			body.applyForceToCenter(vector);
+		}
+		bodies[slot] = null;
+		tableKeys[entries[slot]] = null;
+	}
+
+	/**
+	 * Spreads the bits of identity hash codes, which are often close to each other
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+}
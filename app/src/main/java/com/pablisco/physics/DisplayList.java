@@ -0,0 +1,133 @@
+package com.pablisco.physics;
+
+import android.graphics.Canvas;
+
+/**
+ * Draw commands recorded for a group of objects, so the work of reading the bodies and working
+ * out where to draw them can be done away from the render thread and the canvas only has to
+ * replay them. Used by {@link ParallelRenderer}.
+ * <p/>
+ * Commands are kept in flat arrays that are reused from one frame to the next.
+ */
+public final class DisplayList {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final byte RECT = 0;
+	private static final byte DIRECT = 1;
+
+	private int count;
+
+	private byte[] ops = new byte[INITIAL_CAPACITY];
+	private int[] styleIds = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Center, angle in degrees and half sizes, all in pixels
+	 */
+	private float[] xs = new float[INITIAL_CAPACITY];
+	private float[] ys = new float[INITIAL_CAPACITY];
+	private float[] angles = new float[INITIAL_CAPACITY];
+	private float[] halfWidths = new float[INITIAL_CAPACITY];
+	private float[] halfHeights = new float[INITIAL_CAPACITY];
+
+	/**
+	 * Objects that draw themselves, only for {@link #DIRECT} commands
+	 */
+	private PhysicsObject[] objects = new PhysicsObject[INITIAL_CAPACITY];
+
+	/**
+	 * Adds a rectangle
+	 * @param x horizontal center in pixels
+	 * @param y vertical center in pixels
+	 * @param angle rotation around the center in degrees
+	 * @param halfWidth half of the width in pixels
+	 * @param halfHeight half of the height in pixels
+	 * @param styleId id in {@link StyleRegistry} of the paint to use
+	 */
+	public void addRect(float x, float y, float angle, float halfWidth, float halfHeight,
+	                    int styleId) {
+		ensureCapacity();
+		ops[count] = RECT;
+		xs[count] = x;
+		ys[count] = y;
+		angles[count] = angle;
+		halfWidths[count] = halfWidth;
+		halfHeights[count] = halfHeight;
+		styleIds[count] = styleId;
+		count++;
+	}
+
+	/**
+	 * Adds an object that will be drawn with {@link PhysicsObject#draw(Canvas)} when replaying
+	 */
+	public void addDirect(PhysicsObject object) {
+		ensureCapacity();
+		ops[count] = DIRECT;
+		objects[count] = object;
+		count++;
+	}
+
+	/**
+	 * @return number of commands
+	 */
+	public int size() {
+		return count;
+	}
+
+	void reset() {
+		for (int i = 0; i < count; i++) {
+			objects[i] = null;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Draws all the commands in order
+	 */
+	void replay(Canvas canvas) {
+		for (int i = 0; i < count; i++) {
+			if (ops[i] == DIRECT) {
+				objects[i].draw(canvas);
+			} else if (angles[i] == 0) {
+				canvas.drawRect(xs[i] - halfWidths[i], ys[i] - halfHeights[i],
+					xs[i] + halfWidths[i], ys[i] + halfHeights[i],
+					StyleRegistry.getPaint(styleIds[i]));
+			} else {
+				canvas.save();
+				canvas.translate(xs[i], ys[i]);
+				canvas.rotate(angles[i]);
+				canvas.drawRect(-halfWidths[i], -halfHeights[i], halfWidths[i], halfHeights[i],
+					StyleRegistry.getPaint(styleIds[i]));
+				canvas.restore();
+			}
+		}
+	}
+
+	private void ensureCapacity() {
+		if (count < ops.length) {
+			return;
+		}
+		int capacity = ops.length * 2;
+		byte[] newOps = new byte[capacity];
+		System.arraycopy(ops, 0, newOps, 0, count);
+		ops = newOps;
+		int[] newStyleIds = new int[capacity];
+		System.arraycopy(styleIds, 0, newStyleIds, 0, count);
+		styleIds = newStyleIds;
+		PhysicsObject[] newObjects = new PhysicsObject[capacity];
+		System.arraycopy(objects, 0, newObjects, 0, count);
+		objects = newObjects;
+		xs = grow(xs, capacity);
+		ys = grow(ys, capacity);
+		angles = grow(angles, capacity);
+		halfWidths = grow(halfWidths, capacity);
+		halfHeights = grow(halfHeights, capacity);
+	}
+
+	private float[] grow(float[] source, int capacity) {
+		float[] result = new float[capacity];
+		System.arraycopy(source, 0, result, 0, count);
+		return result;
+	}
+
+}
@@ -0,0 +1,334 @@
+package com.pablisco.physics;
+
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.World;
+import org.jbox2d.dynamics.contacts.Contact;
+import org.jbox2d.dynamics.contacts.ContactEdge;
+import org.jbox2d.dynamics.joints.Joint;
+import org.jbox2d.dynamics.joints.JointEdge;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates how much heap is retained by the objects of a {@link PhysicsEngine}.
+ * <p/>
+ * It walks the object graph of each {@link PhysicsObject} (including its body, fixtures and
+ * shapes) and adds up the estimated size of every instance found, using the layout of the
+ * Android runtimes (8 byte object header, 4 byte references, also on 64 bit devices, and 8 byte
+ * alignment). The estimate is checked against the growth of the heap in FootprintAnalyzerTest.
+ * <p/>
+ * Anything shared with the rest of the world (the {@link World}, the engine with its
+ * {@link CollisionMatrix} and {@link Origin}, other bodies, contacts and joints) is not followed.
+ * Instances reached from more than one object are counted once, as shared, instead of being
+ * charged to whichever object is walked first, so the bytes of each type don't depend on the
+ * order of the objects. Paints shared through {@link StyleRegistry} are not part of any object,
+ * paints owned by objects out of slim mode are (see
+ * {@link BasePhysicsObject#setSlimMode(boolean)}).
+ * <p/>
+ * Results are more accurate when the engine is stopped.
+ */
+public class FootprintAnalyzer {
+
+	private static final int OBJECT_HEADER = 8;
+	private static final int ARRAY_HEADER = 12;
+	private static final int REFERENCE = 4;
+	private static final int ALIGNMENT = 8;
+
+	/**
+	 * Types that belong to the world as a whole and not to a single object
+	 */
+	private static final Class<?>[] BOUNDARIES = {
+		World.class, PhysicsEngine.class, CollisionMatrix.class, Origin.class, Contact.class,
+		ContactEdge.class, Joint.class, JointEdge.class, Class.class, ClassLoader.class,
+		Thread.class, Enum.class
+	};
+
+	/**
+	 * Marks instances reached from more than one root in {@link #owners}
+	 */
+	private static final Object SHARED = new Object();
+
+	/**
+	 * Instances found so far and the root they were reached from, or {@link #SHARED}
+	 */
+	private final Map<Object, Object> owners = new IdentityHashMap<>();
+
+	/**
+	 * Instances found from the current root
+	 */
+	private final Set<Object> visited =
+		Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	private final Map<Class<?>, Long> shallowSizes = new HashMap<>();
+
+	private final Map<Class<?>, List<Field>> references = new HashMap<>();
+
+	private final Deque<Object> pending = new ArrayDeque<>();
+
+	/**
+	 * Analyzes all the objects currently added to the engine.
+	 * @param engine to analyze
+	 * @return a report with the bytes retained by each type of object
+	 */
+	public static Report analyze(PhysicsEngine engine) {
+		FootprintAnalyzer analyzer = new FootprintAnalyzer();
+		List<PhysicsObject> objects = engine.getObjects();
+		for (PhysicsObject object : objects) {
+			analyzer.walk(object);
+		}
+		Map<Object, Long> sizes = new IdentityHashMap<>();
+		Report report = new Report();
+		for (Map.Entry<Object, Object> entry : analyzer.owners.entrySet()) {
+			long size = analyzer.instanceSize(entry.getKey());
+			Object owner = entry.getValue();
+			if (owner == SHARED) {
+				report.sharedBytes += size;
+			} else {
+				Long total = sizes.get(owner);
+				sizes.put(owner, total == null ? size : total + size);
+			}
+		}
+		for (PhysicsObject object : objects) {
+			Long size = sizes.get(object);
+			report.add(object.getClass(), size == null ? 0 : size);
+		}
+		return report;
+	}
+
+	/**
+	 * Estimates the bytes retained by a single object.
+	 * @param root object to measure
+	 * @return the estimated size in bytes
+	 */
+	public static long retainedSize(Object root) {
+		FootprintAnalyzer analyzer = new FootprintAnalyzer();
+		analyzer.walk(root);
+		long total = 0;
+		for (Object instance : analyzer.owners.keySet()) {
+			total += analyzer.instanceSize(instance);
+		}
+		return total;
+	}
+
+	private FootprintAnalyzer() {
+		// use analyze() or retainedSize()
+	}
+
+	/**
+	 * Finds every instance retained by the root and records who owns it
+	 */
+	private void walk(Object root) {
+		visited.clear();
+		push(root, null);
+		while (!pending.isEmpty()) {
+			Object current = pending.pop();
+			Object owner = owners.get(current);
+			if (owner == null) {
+				owners.put(current, root);
+			} else if (owner != root) {
+				owners.put(current, SHARED);
+			}
+			Class<?> type = current.getClass();
+			if (type.isArray()) {
+				if (!type.getComponentType().isPrimitive()) {
+					for (int i = 0, n = Array.getLength(current); i < n; i++) {
+						push(Array.get(current, i), current);
+					}
+				}
+			} else {
+				for (Field field : referenceFields(type)) {
+					try {
+						push(field.get(current), current);
+					} catch (IllegalAccessException e) {
+						// not accessible, treat as not retained
+					}
+				}
+			}
+		}
+	}
+
+	private long instanceSize(Object instance) {
+		Class<?> type = instance.getClass();
+		return type.isArray() ? arraySize(instance) : shallowSize(type);
+	}
+
+	private void push(Object value, Object referrer) {
+		if (value == null || visited.contains(value) || isBoundary(value)) {
+			return;
+		}
+		// bodies are linked to each other in the world, we only follow them from their owners
+		if (value instanceof Body && referrer instanceof Body) {
+			return;
+		}
+		visited.add(value);
+		pending.push(value);
+	}
+
+	private static boolean isBoundary(Object value) {
+		for (Class<?> boundary : BOUNDARIES) {
+			if (boundary.isInstance(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long arraySize(Object array) {
+		Class<?> component = array.getClass().getComponentType();
+		return align(ARRAY_HEADER + (long) Array.getLength(array) * sizeOf(component));
+	}
+
+	private long shallowSize(Class<?> type) {
+		Long cached = shallowSizes.get(type);
+		if (cached == null) {
+			long size = OBJECT_HEADER;
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers())) {
+						size += sizeOf(field.getType());
+					}
+				}
+			}
+			cached = align(size);
+			shallowSizes.put(type, cached);
+		}
+		return cached;
+	}
+
+	private List<Field> referenceFields(Class<?> type) {
+		List<Field> result = references.get(type);
+		if (result == null) {
+			result = new ArrayList<>();
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+						try {
+							field.setAccessible(true);
+							result.add(field);
+						} catch (SecurityException e) {
+							// not accessible, treat as not retained
+						}
+					}
+				}
+			}
+			references.put(type, result);
+		}
+		return result;
+	}
+
+	private static int sizeOf(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		} else if (type == int.class || type == float.class) {
+			return 4;
+		} else if (type == short.class || type == char.class) {
+			return 2;
+		} else if (type == byte.class || type == boolean.class) {
+			return 1;
+		}
+		return REFERENCE;
+	}
+
+	private static long align(long size) {
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * Result of {@link #analyze(PhysicsEngine)}. Sizes are grouped by the type of the objects
+	 * added to the engine.
+	 */
+	public static class Report {
+
+		private final Map<Class<?>, long[]> entries = new LinkedHashMap<>();
+
+		private long totalBytes;
+
+		private int totalCount;
+
+		private long sharedBytes;
+
+		private void add(Class<?> type, long bytes) {
+			long[] entry = entries.get(type);
+			if (entry == null) {
+				entry = new long[2];
+				entries.put(type, entry);
+			}
+			entry[0]++;
+			entry[1] += bytes;
+			totalCount++;
+			totalBytes += bytes;
+		}
+
+		/**
+		 * @return how many objects of the given type were analyzed
+		 */
+		public int getCount(Class<?> type) {
+			long[] entry = entries.get(type);
+			return entry == null ? 0 : (int) entry[0];
+		}
+
+		/**
+		 * @return bytes retained by all the objects of the given type
+		 */
+		public long getBytes(Class<?> type) {
+			long[] entry = entries.get(type);
+			return entry == null ? 0 : entry[1];
+		}
+
+		/**
+		 * @return average bytes retained by an object of the given type
+		 */
+		public long getBytesPerObject(Class<?> type) {
+			int count = getCount(type);
+			return count == 0 ? 0 : getBytes(type) / count;
+		}
+
+		/**
+		 * @return bytes retained by all the objects in the engine, not counting the ones
+		 * shared between them
+		 */
+		public long getTotalBytes() {
+			return totalBytes;
+		}
+
+		/**
+		 * @return bytes reached from more than one object, which aren't part of any type
+		 */
+		public long getSharedBytes() {
+			return sharedBytes;
+		}
+
+		public int getTotalCount() {
+			return totalCount;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder("type\tcount\tbytes\tbytes/object\n");
+			for (Map.Entry<Class<?>, long[]> entry : entries.entrySet()) {
+				long[] values = entry.getValue();
+				result.append(entry.getKey().getSimpleName()).append('\t')
+					.append(values[0]).append('\t')
+					.append(values[1]).append('\t')
+					.append(values[1] / values[0]).append('\n');
+			}
+			result.append("shared\t\t").append(sharedBytes).append('\n');
+			result.append("total\t").append(totalCount).append('\t').append(totalBytes);
+			return result.toString();
+		}
+
+	}
+
+}
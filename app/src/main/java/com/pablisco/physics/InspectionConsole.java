@@ -0,0 +1,436 @@
+package com.pablisco.physics;
+
+import android.util.Log;
+
+import org.jbox2d.dynamics.World;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text console to inspect and tune a running {@link PhysicsEngine} without rebuilding it. It can
+ * listen on a local socket (i.e. <code>adb forward tcp:7777 tcp:7777</code> and then
+ * <code>nc localhost 7777</code>) or be attached to any pair of streams such as stdin and stdout.
+ * <p/>
+ * Every client gets a line of metrics every interval:
+ * <pre>
+ * metrics step=1200 stepMs=0.412 avgStepMs=0.398 bodies=42 contacts=17 objects=12 frameRate=60
+ * ppm=128.0 gravity=0.00,9.80 iterations=6,6
+ * </pre>
+ * And can send one command per line, several separated by <code>;</code>. All the tuning
+ * commands of a line are applied together between two steps, or none of them if any is wrong:
+ * <ul>
+ *     <li><code>gravity &lt;x&gt; &lt;y&gt;</code> in meters per second squared</li>
+ *     <li><code>iterations &lt;velocity&gt; &lt;position&gt;</code></li>
+ *     <li><code>framerate &lt;steps per second&gt;</code></li>
+ *     <li><code>collide &lt;category&gt; &lt;category&gt; on|off</code>, see
+ *     {@link CollisionMatrix}</li>
+ *     <li><code>stats</code> sends the metrics straight away</li>
+ *     <li><code>stream on|off</code> and <code>interval &lt;milliseconds&gt;</code> change
+ *     the metrics sent to the client</li>
+ *     <li><code>help</code> and <code>quit</code></li>
+ * </ul>
+ * Replies are <code>ok step=&lt;n&gt;</code> with the step before which the changes were
+ * applied, <code>ok queued</code> if the engine isn't running, or
+ * <code>error &lt;reason&gt;</code>.
+ * <p/>
+ * Pixels per meter are reported but can't be tuned as they are already baked into the shapes.
+ * The socket only accepts connections from the same device.
+ */
+public class InspectionConsole implements Closeable {
+
+	private static final String TAG = InspectionConsole.class.getSimpleName();
+
+	private static final String HELP = "commands: gravity <x> <y>; iterations <velocity> "
+		+ "<position>; framerate <n>; collide <a> <b> on|off; stats; stream on|off; "
+		+ "interval <ms>; help; quit";
+
+	/**
+	 * How long a client waits for its changes to be applied before replying
+	 */
+	private static final long APPLY_TIMEOUT = 1000;
+
+	private final PhysicsEngine engine;
+
+	private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+	private ServerSocket server;
+
+	private Thread metricsThread;
+
+	private volatile boolean closed;
+
+	/**
+	 * Values of the last metrics, to work out the average step time
+	 */
+	private long lastSteps, lastStepNanos;
+
+	/**
+	 * @param engine to inspect and tune
+	 */
+	public InspectionConsole(PhysicsEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Starts listening for clients on the loopback interface
+	 * @param port to listen to or 0 for any free port
+	 * @return the port used
+	 * @throws IOException if the port can't be used
+	 */
+	public synchronized int listen(int port) throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Already listening on port " + server.getLocalPort());
+		}
+		server = new ServerSocket(port, 1, InetAddress.getByName(null));
+		final ServerSocket server = this.server;
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Socket socket = server.accept();
+						serve(socket.getInputStream(), socket.getOutputStream(), socket);
+					} catch (IOException e) {
+						if (!closed) {
+							Log.w(TAG, "Can't accept client", e);
+						}
+						return;
+					}
+				}
+			}
+		}, "Console Accept Thread");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		startMetrics();
+		Log.i(TAG, "Listening on port " + server.getLocalPort());
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Serves a single client over a pair of streams (i.e. {@link System#in} and
+	 * {@link System#out})
+	 * @return self
+	 */
+	public synchronized InspectionConsole attach(InputStream in, OutputStream out) {
+		serve(in, out, in);
+		startMetrics();
+		return this;
+	}
+
+	/**
+	 * Disconnects every client and stops listening
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		closeQuietly(server);
+		for (Client client : clients) {
+			client.close();
+		}
+		if (metricsThread != null) {
+			metricsThread.interrupt();
+		}
+	}
+
+	private void serve(InputStream in, OutputStream out, Closeable connection) {
+		final Client client = new Client(in, out, connection);
+		clients.add(client);
+		Thread thread = new Thread(client, "Console Client " + clients.size());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void startMetrics() {
+		if (metricsThread != null) {
+			return;
+		}
+		metricsThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final long started = System.currentTimeMillis();
+				try {
+					while (!closed) {
+						// one tick per 100ms, each client has its own interval
+						Thread.sleep(100);
+						final long now = System.currentTimeMillis() - started;
+						String metrics = null;
+						for (Client client : clients) {
+							if (client.isDue(now)) {
+								if (metrics == null) {
+									metrics = metrics();
+								}
+								client.send(metrics);
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		}, "Console Metrics Thread");
+		metricsThread.setDaemon(true);
+		metricsThread.start();
+	}
+
+	/**
+	 * @return a line with the current metrics of the engine
+	 */
+	synchronized String metrics() {
+		final long steps = engine.getStepCount();
+		final long stepNanos = engine.getTotalStepNanos();
+		final long newSteps = steps - lastSteps;
+		final double average = newSteps > 0 ? (stepNanos - lastStepNanos) / 1e6 / newSteps : 0;
+		lastSteps = steps;
+		lastStepNanos = stepNanos;
+		return String.format(Locale.US, "metrics step=%d stepMs=%.3f avgStepMs=%.3f bodies=%d "
+				+ "contacts=%d objects=%d frameRate=%d ppm=%.1f gravity=%.2f,%.2f "
+				+ "iterations=%d,%d",
+			steps, engine.getLastStepNanos() / 1e6, average, engine.getBodyCount(),
+			engine.getContactCount(), engine.getObjectCount(), engine.getFrameRate(),
+			MeasurementUtil.PPM, engine.getGravityX(), engine.getGravityY(),
+			engine.getVelocityIterations(), engine.getPositionIterations());
+	}
+
+	/**
+	 * A change applied in the physics thread
+	 */
+	private interface Tuning {
+		void apply(World world);
+	}
+
+	/**
+	 * Turns a tuning command into a {@link Tuning}, checking its arguments
+	 * @return the tuning or null if it isn't a tuning command
+	 * @throws IllegalArgumentException if the arguments are wrong
+	 */
+	private Tuning parseTuning(String[] words) {
+		final String command = words[0];
+		if ("gravity".equals(command)) {
+			checkArguments(words, 2);
+			final float x = Float.parseFloat(words[1]);
+			final float y = Float.parseFloat(words[2]);
+			PhysicsEngine.checkGravity(x, y);
+			return new Tuning() {
+				@Override
+				public void apply(World world) {
+					engine.applyGravity(world, x, y);
+				}
+			};
+		} else if ("iterations".equals(command)) {
+			checkArguments(words, 2);
+			final int velocity = Integer.parseInt(words[1]);
+			final int position = Integer.parseInt(words[2]);
+			PhysicsEngine.checkIterations(velocity, position);
+			return new Tuning() {
+				@Override
+				public void apply(World world) {
+					engine.applyIterations(velocity, position);
+				}
+			};
+		} else if ("framerate".equals(command)) {
+			checkArguments(words, 1);
+			final int frameRate = Integer.parseInt(words[1]);
+			PhysicsEngine.checkFrameRate(frameRate);
+			return new Tuning() {
+				@Override
+				public void apply(World world) {
+					engine.setFrameRate(frameRate);
+				}
+			};
+		} else if ("collide".equals(command)) {
+			checkArguments(words, 3);
+			final int a = checkCategory(Integer.parseInt(words[1]));
+			final int b = checkCategory(Integer.parseInt(words[2]));
+			final boolean collides = parseSwitch(words[3]);
+			return new Tuning() {
+				@Override
+				public void apply(World world) {
+					engine.getCollisionMatrix().setCollides(a, b, collides);
+				}
+			};
+		}
+		return null;
+	}
+
+	private static void checkArguments(String[] words, int count) {
+		if (words.length != count + 1) {
+			throw new IllegalArgumentException(words[0] + " takes " + count + " arguments");
+		}
+	}
+
+	private static int checkCategory(int category) {
+		if (category < 0 || category >= CollisionMatrix.CATEGORIES) {
+			throw new IllegalArgumentException("Invalid category: " + category);
+		}
+		return category;
+	}
+
+	private static boolean parseSwitch(String value) {
+		if ("on".equals(value)) {
+			return true;
+		} else if ("off".equals(value)) {
+			return false;
+		}
+		throw new IllegalArgumentException("Expected on or off: " + value);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// nothing else to do
+			}
+		}
+	}
+
+	/**
+	 * A connected client, reads its commands in its own thread
+	 */
+	private class Client implements Runnable {
+
+		private final BufferedReader reader;
+		private final PrintWriter writer;
+		private final Closeable connection;
+
+		private volatile boolean streaming = true;
+		private volatile long interval = 1000;
+		private volatile long nextMetrics;
+
+		Client(InputStream in, OutputStream out, Closeable connection) {
+			this.reader = new BufferedReader(new InputStreamReader(in));
+			this.writer = new PrintWriter(new OutputStreamWriter(out), true);
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			send("hello " + HELP);
+			try {
+				String line;
+				while (!closed && (line = reader.readLine()) != null) {
+					if (!handle(line.trim())) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// disconnected
+			} finally {
+				clients.remove(this);
+				close();
+			}
+		}
+
+		/**
+		 * @return false if the client has quit
+		 */
+		private boolean handle(String line) {
+			if (line.isEmpty()) {
+				return true;
+			}
+			final List<Tuning> tunings = new ArrayList<>();
+			try {
+				for (String command : line.split(";")) {
+					final String[] words = command.trim().split("\\s+");
+					final Tuning tuning = parseTuning(words);
+					if (tuning != null) {
+						tunings.add(tuning);
+					} else if ("quit".equals(words[0])) {
+						return false;
+					} else if ("help".equals(words[0])) {
+						send(HELP);
+					} else if ("stats".equals(words[0])) {
+						send(metrics());
+					} else if ("stream".equals(words[0])) {
+						checkArguments(words, 1);
+						streaming = parseSwitch(words[1]);
+					} else if ("interval".equals(words[0])) {
+						checkArguments(words, 1);
+						final long interval = Long.parseLong(words[1]);
+						if (interval <= 0) {
+							throw new IllegalArgumentException("Invalid interval: " + interval);
+						}
+						this.interval = interval;
+					} else {
+						throw new IllegalArgumentException("Unknown command: " + words[0]);
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				// includes NumberFormatException
+				send("error " + e.getMessage());
+				return true;
+			}
+			if (tunings.isEmpty()) {
+				send("ok");
+			} else {
+				apply(tunings);
+			}
+			return true;
+		}
+
+		/**
+		 * Applies all the changes in a single task and waits for it to run
+		 */
+		private void apply(final List<Tuning> tunings) {
+			final CountDownLatch applied = new CountDownLatch(1);
+			final long[] step = new long[1];
+			engine.post(new PhysicsEngine.WorldTask() {
+				@Override
+				public void run(World world) {
+					for (Tuning tuning : tunings) {
+						tuning.apply(world);
+					}
+					step[0] = engine.getStepCount();
+					applied.countDown();
+				}
+			});
+			try {
+				if (applied.await(APPLY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					send("ok step=" + step[0]);
+				} else {
+					send("ok queued");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		boolean isDue(long now) {
+			if (!streaming || now < nextMetrics) {
+				return false;
+			}
+			nextMetrics = now + interval;
+			return true;
+		}
+
+		void send(String line) {
+			synchronized (writer) {
+				writer.println(line);
+			}
+		}
+
+		void close() {
+			closeQuietly(connection);
+			// the output is left open as it can be System.out
+			writer.flush();
+		}
+
+	}
+
+}
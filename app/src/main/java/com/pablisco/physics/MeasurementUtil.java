@@ -33,6 +33,51 @@ public class MeasurementUtil {
 		return value * PPM;
 	}
 
+	/**
+	 * Converts a horizontal position in pixels into a position in the world. Unlike
+	 * {@link #pixelToMeters(float)}, which is meant for sizes, it takes the floating origin into
+	 * account.
+	 * @param origin of the world, from the engine the position is for
+	 * @param x position in pixels
+	 * @return position in meters relative to the origin of the world
+	 */
+	public static float pixelToWorldX(Origin origin, float x) {
+		return (float) (x / PPM - origin.getX());
+	}
+
+	/**
+	 * Vertical version of {@link #pixelToWorldX(Origin, float)}
+	 */
+	public static float pixelToWorldY(Origin origin, float y) {
+		return (float) (y / PPM - origin.getY());
+	}
+
+	/**
+	 * Converts a horizontal position in the world into a position in pixels, taking the floating
+	 * origin into account.
+	 * @param origin of the world, from the engine the position is from
+	 * @param x position in meters relative to the origin of the world
+	 * @return position in pixels
+	 */
+	public static float worldToPixelX(Origin origin, float x) {
+		return (float) ((x + origin.getX()) * PPM);
+	}
+
+	/**
+	 * Vertical version of {@link #worldToPixelX(Origin, float)}
+	 */
+	public static float worldToPixelY(Origin origin, float y) {
+		return (float) ((y + origin.getY()) * PPM);
+	}
+
+	/**
+	 * Same as {@link #pixelToWorldX(Origin, float)} and {@link #pixelToWorldY(Origin, float)}
+	 * with {@link Vec2}
+	 */
+	public static Vec2 pixelToWorld(Origin origin, Vec2 position) {
+		return new Vec2(pixelToWorldX(origin, position.x), pixelToWorldY(origin, position.y));
+	}
+
 	/**
 	 * Same as {@link #pixelToMeters(float)} but with {@link Vec2} as parameters
 	 */
@@ -0,0 +1,200 @@
+package com.pablisco.physics;
+
+import org.jbox2d.dynamics.Body;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Objects of a {@link PhysicsEngine} with a stable id each, so they can be found from their
+ * bodies (i.e. from contacts or queries) and removed in constant time.
+ * <p/>
+ * The id of an object is kept in the user data of its bodies (see {@link #getId(Body)}).
+ * Objects are kept in a dense array and removed by moving the last one into their place, so the
+ * order changes when removing. Ids of removed objects are reused, each time with a new
+ * {@link Key}, so bodies of a removed object (i.e. kept in a query result) don't lead to the
+ * next object with the same id.
+ * <p/>
+ * Changed from the physics thread, it can be read from any thread.
+ */
+final class ObjectIndex {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final int NO_SLOT = -1;
+
+	/**
+	 * Objects with no gaps, the first {@link #size} are in use
+	 */
+	private PhysicsObject[] objects = new PhysicsObject[INITIAL_CAPACITY];
+
+	/**
+	 * Id of the object in each slot
+	 */
+	private int[] ids = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Slot of each id or {@link #NO_SLOT} if the id is free
+	 */
+	private int[] slots = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Keys of the objects in the index, set as the user data of their bodies and compared by
+	 * identity
+	 */
+	private Key[] keys = new Key[INITIAL_CAPACITY];
+
+	/**
+	 * Key of each object, to remove them
+	 */
+	private final Map<PhysicsObject, Key> idsByObject = new IdentityHashMap<>();
+
+	/**
+	 * Ids released by removed objects, used as a stack
+	 */
+	private int[] freeIds = new int[INITIAL_CAPACITY];
+	private int freeCount;
+
+	/**
+	 * Ids handed out so far, including the free ones
+	 */
+	private int idCount;
+
+	private int size;
+
+	ObjectIndex() {
+		Arrays.fill(slots, NO_SLOT);
+	}
+
+	/**
+	 * @return the key given to the object, or the one it already had, to use as the user data of
+	 * its bodies
+	 */
+	synchronized Object add(PhysicsObject object) {
+		Key existing = idsByObject.get(object);
+		if (existing != null) {
+			return existing;
+		}
+		final int id = freeCount > 0 ? freeIds[--freeCount] : idCount++;
+		if (id >= slots.length) {
+			int capacity = slots.length * 2;
+			slots = Arrays.copyOf(slots, capacity);
+			Arrays.fill(slots, id, capacity, NO_SLOT);
+			keys = Arrays.copyOf(keys, capacity);
+		}
+		// a new key each time, the previous owner of the id may still have bodies around
+		keys[id] = new Key(id);
+		if (size == objects.length) {
+			objects = Arrays.copyOf(objects, size * 2);
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		objects[size] = object;
+		ids[size] = id;
+		slots[id] = size;
+		size++;
+		idsByObject.put(object, keys[id]);
+		return keys[id];
+	}
+
+	/**
+	 * Takes the object out, moving the last object to its slot
+	 * @return false if the object wasn't in the index
+	 */
+	synchronized boolean remove(PhysicsObject object) {
+		final Key key = idsByObject.remove(object);
+		if (key == null) {
+			return false;
+		}
+		final int id = key.id;
+		final int slot = slots[id];
+		final int last = size - 1;
+		objects[slot] = objects[last];
+		ids[slot] = ids[last];
+		slots[ids[slot]] = slot;
+		objects[last] = null;
+		slots[id] = NO_SLOT;
+		keys[id] = null;
+		size = last;
+		if (freeCount == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+		}
+		freeIds[freeCount++] = id;
+		return true;
+	}
+
+	/**
+	 * @return the id of the object or -1 if it isn't in the index
+	 */
+	synchronized int getId(PhysicsObject object) {
+		final Key key = idsByObject.get(object);
+		return key != null ? key.id : NO_SLOT;
+	}
+
+	/**
+	 * @return the object with the id or null if there is none
+	 */
+	synchronized PhysicsObject get(int id) {
+		if (id < 0 || id >= slots.length || slots[id] == NO_SLOT) {
+			return null;
+		}
+		return objects[slots[id]];
+	}
+
+	/**
+	 * @return the object that owns the body or null if it doesn't belong to any, which includes
+	 * bodies of removed objects
+	 */
+	synchronized PhysicsObject get(Body body) {
+		final Object data = body.getUserData();
+		if (!(data instanceof Key)) {
+			return null;
+		}
+		final int id = ((Key) data).id;
+		if (id >= keys.length || keys[id] != data) {
+			return null;
+		}
+		return objects[slots[id]];
+	}
+
+	/**
+	 * @return the id stored in the body or -1 if it has none
+	 */
+	static int getId(Body body) {
+		final Object data = body.getUserData();
+		return data instanceof Key ? ((Key) data).id : NO_SLOT;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return a copy of the objects, in no particular order
+	 */
+	synchronized List<PhysicsObject> snapshot() {
+		return new ArrayList<>(Arrays.asList(objects).subList(0, size));
+	}
+
+	/**
+	 * User data of the bodies of an object. Only the key currently in {@link #keys} for its id
+	 * is valid.
+	 */
+	private static final class Key {
+
+		final int id;
+
+		Key(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + id;
+		}
+
+	}
+
+}
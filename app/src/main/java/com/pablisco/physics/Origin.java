@@ -0,0 +1,47 @@
+package com.pablisco.physics;
+
+/**
+ * Position, in meters, of the origin of a world relative to the origin of the pixels. Each
+ * {@link PhysicsEngine} has its own, which only moves when it uses a floating origin (see
+ * {@link PhysicsEngine#setFloatingOrigin(float)}).
+ * <p/>
+ * It's kept in doubles so positions far away are still precise, and it's immutable so both
+ * values are always read together. Conversions that take it into account are in
+ * {@link MeasurementUtil}.
+ */
+public final class Origin {
+
+	/**
+	 * The origin of the world on the origin of the pixels
+	 */
+	public static final Origin ZERO = new Origin(0, 0);
+
+	private final double x, y;
+
+	private Origin(double x, double y) {
+		this.x = x;
+		this.y = y;
+	}
+
+	/**
+	 * @return horizontal position of the origin of the world in meters
+	 */
+	public double getX() {
+		return x;
+	}
+
+	/**
+	 * @return vertical position of the origin of the world in meters
+	 */
+	public double getY() {
+		return y;
+	}
+
+	/**
+	 * @return the origin moved by the given amount in meters
+	 */
+	Origin shift(float x, float y) {
+		return new Origin(this.x + x, this.y + y);
+	}
+
+}
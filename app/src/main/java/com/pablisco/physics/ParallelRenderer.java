@@ -0,0 +1,201 @@
+package com.pablisco.physics;
+
+import android.graphics.Canvas;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Draws the objects of a {@link PhysicsEngine} using several cores. Objects are split in chunks
+ * and a {@link DisplayList} is recorded for each chunk in parallel, by a pool of workers and the
+ * render thread itself. The lists are then replayed on the canvas, in order, by the render
+ * thread, so objects are drawn in the same order as when drawing them one by one.
+ * <p/>
+ * Only objects implementing {@link Recordable} benefit from it, any other object is drawn
+ * directly when its chunk is replayed.
+ *
+ * @see PhysicsEngine#setParallelRendering(int)
+ */
+public class ParallelRenderer {
+
+	private static final int CHUNK_SIZE = 128;
+
+	/**
+	 * Bits of {@link #claims} used for the number of chunks and for the next chunk each
+	 */
+	private static final int CHUNK_BITS = 20;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	private final Thread[] workers;
+
+	/**
+	 * One permit per worker for each frame, the ones left at the end of the frame are dropped
+	 */
+	private final Semaphore work = new Semaphore(0);
+
+	/**
+	 * Frame number, number of chunks of the frame and next chunk to record, from the high bits to
+	 * the low ones. Packed together so claiming a chunk and checking it belongs to the frame are a
+	 * single compare and set: a worker late from a previous frame either sees the new frame or
+	 * no chunks left, never a chunk of one frame against the count of another.
+	 */
+	private final AtomicLong claims = new AtomicLong();
+
+	/**
+	 * Only used in the render thread
+	 */
+	private long frame;
+
+	/**
+	 * Chunks not finished yet in the current frame, guarded by {@link #doneLock}
+	 */
+	private int pending;
+	private final Object doneLock = new Object();
+
+	/* set by the render thread before publishing the claims of the frame */
+
+	private volatile PhysicsObject[] objects = new PhysicsObject[0];
+	private volatile int objectCount;
+	private volatile DisplayList[] lists = new DisplayList[0];
+
+	/**
+	 * Last draw order flattened into {@link #objects}
+	 */
+	private PhysicsObject[][] flattened;
+
+	/**
+	 * @param threads number of workers besides the render thread
+	 */
+	public ParallelRenderer(int threads) {
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!Thread.currentThread().isInterrupted()) {
+							work.acquire();
+							recordChunks();
+						}
+					} catch (InterruptedException e) {
+						// released
+					}
+				}
+			}, "Render Worker " + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Stops the workers, it can't be used afterwards
+	 */
+	public void release() {
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Called by the engine from the render thread
+	 * @param canvas a place to paint
+	 * @param drawOrder groups of objects in the order they must be drawn
+	 */
+	void draw(Canvas canvas, PhysicsObject[][] drawOrder) {
+		// workers that didn't wake up for the last frame have nothing to do
+		work.drainPermits();
+		if (drawOrder != flattened) {
+			flatten(drawOrder);
+		}
+		final int chunks = (objectCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (chunks > CHUNK_MASK) {
+			throw new IllegalStateException("Too many objects: " + objectCount);
+		}
+		if (lists.length < chunks) {
+			DisplayList[] newLists = new DisplayList[chunks];
+			System.arraycopy(lists, 0, newLists, 0, lists.length);
+			for (int i = lists.length; i < chunks; i++) {
+				newLists[i] = new DisplayList();
+			}
+			lists = newLists;
+		}
+		synchronized (doneLock) {
+			pending = chunks;
+		}
+		frame++;
+		claims.set(frame << (CHUNK_BITS * 2) | (long) chunks << CHUNK_BITS);
+		work.release(Math.min(workers.length, Math.max(0, chunks - 1)));
+		// help while the workers do their part
+		recordChunks();
+		synchronized (doneLock) {
+			while (pending > 0) {
+				try {
+					doneLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		work.drainPermits();
+		final DisplayList[] lists = this.lists;
+		for (int i = 0; i < chunks; i++) {
+			lists[i].replay(canvas);
+		}
+	}
+
+	private void flatten(PhysicsObject[][] drawOrder) {
+		int size = 0;
+		for (PhysicsObject[] group : drawOrder) {
+			size += group.length;
+		}
+		PhysicsObject[] result = new PhysicsObject[size];
+		int position = 0;
+		for (PhysicsObject[] group : drawOrder) {
+			System.arraycopy(group, 0, result, position, group.length);
+			position += group.length;
+		}
+		objects = result;
+		objectCount = size;
+		flattened = drawOrder;
+	}
+
+	/**
+	 * Records chunks until there are none left in the current frame
+	 */
+	private void recordChunks() {
+		while (true) {
+			final long claim = claims.get();
+			final int chunk = (int) (claim & CHUNK_MASK);
+			if (chunk >= (int) (claim >>> CHUNK_BITS & CHUNK_MASK)) {
+				return;
+			}
+			if (!claims.compareAndSet(claim, claim + 1)) {
+				// claimed by someone else or a new frame has started
+				continue;
+			}
+			record(chunk);
+			synchronized (doneLock) {
+				if (--pending == 0) {
+					doneLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void record(int chunk) {
+		final DisplayList list = lists[chunk];
+		final PhysicsObject[] objects = this.objects;
+		list.reset();
+		final int end = Math.min(objectCount, (chunk + 1) * CHUNK_SIZE);
+		for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+			final PhysicsObject object = objects[i];
+			if (object instanceof Recordable) {
+				((Recordable) object).record(list);
+			} else {
+				list.addDirect(object);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.pablisco.physics;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.pablisco.physics.objects.InsetBox;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.World;
+
+import java.util.Random;
+
+/**
+ * Visual particles (sparks, confetti, etc.) simulated outside of the jbox2d world so they don't
+ * add any cost to the broad phase or the solver.
+ * <p/>
+ * Particles are kept in flat arrays (one per attribute) with a fixed capacity, so emitting and
+ * simulating them doesn't allocate. They only move with their velocity and the gravity of the
+ * world and, optionally, bounce inside the bounds of an {@link InsetBox}. They don't collide with
+ * bodies or with each other.
+ * <p/>
+ * Particles are updated in the physics thread after each step, see
+ * {@link PhysicsEngine#addParticleSystem(ParticleSystem)}, and drawn by
+ * {@link PhysicsEngine#drawWorld(Canvas)} after the objects. All the particles of a system share
+ * the same style, use several systems for different colors.
+ */
+public class ParticleSystem {
+
+	private final int capacity;
+
+	/* particle attributes in pixels and seconds, guarded by this */
+
+	private final float[] xs, ys, vxs, vys, lives;
+	private int count;
+
+	/**
+	 * Positions to draw. The back buffer is filled in the physics thread and swapped with the
+	 * front one, which is only read while holding {@link #drawLock}.
+	 */
+	private float[] front, back;
+	private int frontCount;
+	private final Object drawLock = new Object();
+
+	private float gravityScale = 1f;
+	private float damping = 0f;
+	private float restitution = 0.5f;
+
+	private int styleId = StyleRegistry.intern(Color.WHITE, 4f, Paint.Style.STROKE);
+
+	/**
+	 * Optional container, particles bounce inside of its bounds
+	 */
+	private volatile InsetBox container;
+
+	private final Random random = new Random();
+
+	/**
+	 * @param capacity maximum number of particles alive at once. New particles are dropped once
+	 *                 it's full.
+	 */
+	public ParticleSystem(int capacity) {
+		this.capacity = capacity;
+		xs = new float[capacity];
+		ys = new float[capacity];
+		vxs = new float[capacity];
+		vys = new float[capacity];
+		lives = new float[capacity];
+		front = new float[capacity * 2];
+		back = new float[capacity * 2];
+	}
+
+	/**
+	 * @param scale of the gravity of the world applied to the particles, 0 to ignore it
+	 * @return self
+	 */
+	public ParticleSystem setGravityScale(float scale) {
+		this.gravityScale = scale;
+		return this;
+	}
+
+	/**
+	 * @param damping fraction of the velocity lost per second, from 0 to 1
+	 * @return self
+	 */
+	public ParticleSystem setDamping(float damping) {
+		this.damping = damping;
+		return this;
+	}
+
+	/**
+	 * @param restitution fraction of the velocity kept when bouncing against the container
+	 * @return self
+	 */
+	public ParticleSystem setRestitution(float restitution) {
+		this.restitution = restitution;
+		return this;
+	}
+
+	public ParticleSystem setColor(int color) {
+		styleId = StyleRegistry.withColor(styleId, color);
+		return this;
+	}
+
+	/**
+	 * @param size of each particle in pixels
+	 * @return self
+	 */
+	public ParticleSystem setSize(float size) {
+		styleId = StyleRegistry.withStrokeWidth(styleId, size);
+		return this;
+	}
+
+	/**
+	 * Keeps the particles inside of a box. The box should be static and not rotated as its bounds
+	 * are read from the position of its body.
+	 * @param container box to bounce against or null to let particles go anywhere
+	 * @return self
+	 */
+	public ParticleSystem setContainer(InsetBox container) {
+		this.container = container;
+		return this;
+	}
+
+	/**
+	 * @return number of particles alive
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Adds a particle. Safe to call from any thread.
+	 * @param x horizontal position in pixels
+	 * @param y vertical position in pixels
+	 * @param vx horizontal velocity in pixels per second
+	 * @param vy vertical velocity in pixels per second
+	 * @param life time to live in seconds
+	 * @return false if the system is full and the particle was dropped
+	 */
+	public synchronized boolean emit(float x, float y, float vx, float vy, float life) {
+		if (count == capacity) {
+			return false;
+		}
+		xs[count] = x;
+		ys[count] = y;
+		vxs[count] = vx;
+		vys[count] = vy;
+		lives[count] = life;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Emits particles from a point in random directions. Safe to call from any thread.
+	 * @param x horizontal position in pixels
+	 * @param y vertical position in pixels
+	 * @param amount number of particles
+	 * @param speed maximum speed in pixels per second
+	 * @param life maximum time to live in seconds
+	 * @return number of particles emitted
+	 */
+	public synchronized int burst(float x, float y, int amount, float speed, float life) {
+		int emitted = 0;
+		for (int i = 0; i < amount && count < capacity; i++) {
+			double angle = random.nextFloat() * Math.PI * 2;
+			float velocity = speed * random.nextFloat();
+			emit(x, y, (float) Math.cos(angle) * velocity, (float) Math.sin(angle) * velocity,
+				life * (0.5f + 0.5f * random.nextFloat()));
+			emitted++;
+		}
+		return emitted;
+	}
+
+	/**
+	 * Removes all the particles
+	 */
+	public synchronized void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Moves the particles forward in time. Called by the engine from the physics thread after
+	 * each step.
+	 * @param world used for the gravity
+	 * @param timeStep seconds since the last update
+	 * @param origin of the world, to find the container in pixels
+	 */
+	void update(World world, float timeStep, Origin origin) {
+		Vec2 gravity = world.getGravity();
+		float ax = MeasurementUtil.metersToPixel(gravity.x) * gravityScale * timeStep;
+		float ay = MeasurementUtil.metersToPixel(gravity.y) * gravityScale * timeStep;
+		float friction = Math.max(0f, 1f - damping * timeStep);
+		InsetBox box = container;
+		Body body = box != null ? box.getBody() : null;
+		boolean bounded = body != null;
+		float left = 0, top = 0, right = 0, bottom = 0;
+		if (bounded) {
+			Vec2 center = body.getPosition();
+			float x = MeasurementUtil.worldToPixelX(origin, center.x);
+			float y = MeasurementUtil.worldToPixelY(origin, center.y);
+			left = x - box.getWidth() * 0.5f;
+			right = x + box.getWidth() * 0.5f;
+			top = y - box.getHeight() * 0.5f;
+			bottom = y + box.getHeight() * 0.5f;
+		}
+		synchronized (this) {
+			int i = 0;
+			while (i < count) {
+				float life = lives[i] - timeStep;
+				if (life <= 0) {
+					// swap with the last one to keep the arrays packed
+					count--;
+					xs[i] = xs[count];
+					ys[i] = ys[count];
+					vxs[i] = vxs[count];
+					vys[i] = vys[count];
+					lives[i] = lives[count];
+					continue;
+				}
+				lives[i] = life;
+				float vx = (vxs[i] + ax) * friction;
+				float vy = (vys[i] + ay) * friction;
+				float x = xs[i] + vx * timeStep;
+				float y = ys[i] + vy * timeStep;
+				if (bounded) {
+					if (x < left) {
+						x = left;
+						vx = -vx * restitution;
+					} else if (x > right) {
+						x = right;
+						vx = -vx * restitution;
+					}
+					if (y < top) {
+						y = top;
+						vy = -vy * restitution;
+					} else if (y > bottom) {
+						y = bottom;
+						vy = -vy * restitution;
+					}
+				}
+				xs[i] = x;
+				ys[i] = y;
+				vxs[i] = vx;
+				vys[i] = vy;
+				back[i * 2] = x;
+				back[i * 2 + 1] = y;
+				i++;
+			}
+			publish(count);
+		}
+	}
+
+	private void publish(int points) {
+		synchronized (drawLock) {
+			float[] buffer = front;
+			front = back;
+			back = buffer;
+			frontCount = points;
+		}
+	}
+
+	/**
+	 * Draws the particles as points. Called by the engine from the render thread.
+	 * @param canvas a place to paint
+	 */
+	void draw(Canvas canvas) {
+		synchronized (drawLock) {
+			if (frontCount > 0) {
+				canvas.drawPoints(front, 0, frontCount * 2, StyleRegistry.getPaint(styleId));
+			}
+		}
+	}
+
+}
@@ -1,16 +1,25 @@
 package com.pablisco.physics;
 
 import android.graphics.Canvas;
+import android.util.Log;
 
 import com.pablisco.threads.FrameThread;
+import com.pablisco.threads.Tracer;
 
 import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
 import org.jbox2d.dynamics.World;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static android.os.Process.setThreadPriority;
@@ -32,33 +41,238 @@ public class PhysicsEngine {
 	private static final String TAG = PhysicsEngine.class.getSimpleName();
 
 	/**
-	 * World used to create and destroy objects and do physics. It has a default gravity of 9.8
-	 * (Earth's)
+	 * Default gravity (Earth's)
 	 */
-	private final World world = new World(new Vec2(0, 9.8f));
+	private static final float GRAVITY = 9.8f;
 
-	private int velocityInteractions = 6;
-	private int positionInteractions = 6;
+	/**
+	 * World used to create and destroy objects and do physics. It's built when it's first needed,
+	 * by {@link #prepare()} or when the engine starts, so creating the engine is cheap.
+	 */
+	private World world;
+
+	/**
+	 * Guards the creation of the world and {@link #started}
+	 */
+	private final Object startLock = new Object();
+
+	private boolean started;
+
+	/**
+	 * When the engine was created, used to measure the startup time
+	 */
+	private final long createdAt = System.nanoTime();
+
+	/**
+	 * Milliseconds from the creation of the engine to the first step or -1
+	 */
+	private volatile long timeToFirstStep = -1;
+
+	/**
+	 * Only changed in the physics thread, read by {@link InspectionConsole}
+	 * @see #setIterations(int, int)
+	 */
+	private volatile int velocityInteractions = 6;
+	private volatile int positionInteractions = 6;
+
+	/**
+	 * Gravity used when the world is built, in meters per second squared
+	 * @see #setGravity(float, float)
+	 */
+	private volatile float gravityX = 0, gravityY = GRAVITY;
 
 	private static final int DEFAULT_FRAME_RATE = 60;
 
+	private static final BodyType[] BODY_TYPES = BodyType.values();
+
+	/**
+	 * Maximum number of commands that can be pending between two steps
+	 */
+	private static final int COMMAND_CAPACITY = 1024;
+
 	/**
-	 * Frame rate used with the internal frame thread. This is provided in the constructor.
-	 * Maybe in the future this will be able to change, for now we have it as a final field
+	 * Frame rate used with the internal frame thread. This is provided in the constructor and can
+	 * be changed with {@link #setFrameRate(int)}.
 	 */
-	private final int frameRate;
+	private volatile int frameRate;
 
 	private Queue<PhysicsObject> objectsToAdd = new ConcurrentLinkedQueue<>();
 
+	/**
+	 * Groups of objects added together with {@link #addAll(PhysicsObject...)}
+	 */
+	private Queue<PhysicsObject[]> batchesToAdd = new ConcurrentLinkedQueue<>();
+
 	private Queue<PhysicsObject> objectsToRemove = new ConcurrentLinkedQueue<>();
 
-	private List<PhysicsObject> victims = new CopyOnWriteArrayList<>();
+	/**
+	 * Objects in the world with their ids, which are stored in their bodies
+	 * @see #getObject(Body)
+	 */
+	private final ObjectIndex victims = new ObjectIndex();
+
+	/**
+	 * Input sent to the bodies, applied at the start of each step
+	 * @see #applyImpulse(Body, float, float)
+	 * @see #applyForce(Body, float, float)
+	 * @see #teleport(Body, float, float, float)
+	 */
+	private final CommandQueue commands = new CommandQueue(COMMAND_CAPACITY);
+
+	/**
+	 * Tasks to be run in the physics thread before the next step
+	 * @see #post(WorldTask)
+	 */
+	private final Queue<WorldTask> tasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Tasks that only read the world, which don't wake it up
+	 * @see #postRead(WorldTask)
+	 */
+	private final Queue<WorldTask> readTasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Runs queries in the physics thread
+	 * @see #raycast(float, float, float, float, QueryResult, QueryListener)
+	 */
+	private final WorldQuery queries = new WorldQuery(victims);
+
+	/**
+	 * Which categories of objects collide with each other
+	 * @see #getCollisionMatrix()
+	 */
+	private final CollisionMatrix collisionMatrix = new CollisionMatrix();
+
+	/**
+	 * Optional, freezes areas of the world with no activity
+	 */
+	private volatile RegionManager regions;
+
+	/**
+	 * Optional, decides when the world can be stepped
+	 */
+	private volatile StepGate stepGate;
+
+	/**
+	 * Optional, detects when the world has settled
+	 */
+	private volatile SleepPolicy sleepPolicy;
+
+	/**
+	 * Set to step the world even if it's settled
+	 * @see #wake()
+	 */
+	private volatile boolean wakeRequested;
+
+	/**
+	 * Steps between checks of the floating origin
+	 */
+	private static final int ORIGIN_CHECK_INTERVAL = 60;
+
+	/**
+	 * Distance, in meters, the active area can get from the origin before moving the origin
+	 * there, or 0 if the origin doesn't float
+	 * @see #setFloatingOrigin(float)
+	 */
+	private volatile float originDistance;
+
+	/**
+	 * Origin of the world, only moved by the physics thread
+	 * @see #getOrigin()
+	 */
+	private volatile Origin origin = Origin.ZERO;
+
+	/**
+	 * Number of steps done so far
+	 */
+	private volatile long steps;
+
+	/**
+	 * Duration of the last step and of all of them, in nanoseconds. Only written by the physics
+	 * thread.
+	 */
+	private volatile long lastStepNanos, totalStepNanos;
+
+	/**
+	 * Counts of the world after the last step
+	 */
+	private volatile int bodyCount, contactCount;
+
+	/**
+	 * Changes every time objects are created or deleted or the origin moves, used to know if
+	 * rollback states and world hashes are still valid
+	 */
+	private int bodiesVersion;
+
+	/**
+	 * Optional, keeps past states to allow rolling back
+	 */
+	private volatile RollbackBuffer rollbackBuffer;
+
+	/**
+	 * Earliest step requested to roll back to or -1, guarded by {@link #rollbackLock}
+	 */
+	private long rollbackStep = -1;
+	private StepReplayer rollbackReplayer;
+	private final Object rollbackLock = new Object();
+
+	/**
+	 * Same content as {@link #victims} split by {@link BodyType} (static objects first) and
+	 * sorted by style so objects with the same paint are drawn together, with the origin of the
+	 * world they are drawn with. It's replaced as a whole when objects are created or deleted and
+	 * when the origin moves.
+	 */
+	private volatile DrawOrder drawOrder =
+		new DrawOrder(new PhysicsObject[BODY_TYPES.length][0], Origin.ZERO);
+
+	/**
+	 * Origin of the draw order being drawn
+	 * @see #getDrawOrigin()
+	 */
+	private volatile Origin drawOrigin = Origin.ZERO;
+
+	/**
+	 * Objects by {@link PhysicsObject#getBodyType()}, indexed by ordinal. Only used in the physics
+	 * thread.
+	 */
+	private final ObjectSet[] objectSets = createObjectSets();
+
+	/**
+	 * Optional, records the objects in parallel before drawing them
+	 */
+	private volatile ParallelRenderer parallelRenderer;
+
+	/**
+	 * Particles updated after each step and drawn on top of the objects
+	 */
+	private final List<ParticleSystem> particleSystems = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Optional, lowers the quality when frames take too long
+	 */
+	private volatile QualityScaler qualityScaler;
+
+	/**
+	 * Duration of the last draw in nanoseconds. Only written by the render thread.
+	 */
+	private volatile long lastDrawNanos;
+
+	/**
+	 * Render frames so far, to skip some of them. Only used in the render thread.
+	 */
+	private long renderFrames;
+
+	/**
+	 * Guards {@link #relativeObjects}, {@link #width} and {@link #height} as objects can be added
+	 * from a background thread (see {@link Preloader}) while the view sets the size
+	 */
+	private final Object sizeLock = new Object();
 
 	/**
 	 * @see {@link #setWorldSize(int, int)}
 	 * @see {@link #add(PhysicsObject)}
 	 */
-	private Queue<PhysicsObject> relativeObjects = new ConcurrentLinkedQueue<>();
+	private final Queue<PhysicsObject> relativeObjects = new ArrayDeque<>();
 
 	/**
 	 * Width available
@@ -74,54 +288,364 @@ public class PhysicsEngine {
 	 * Internal thread used to step the world on each frame.
 	 * TODO: Find a way to avoid frames from being lost (at the moment they are skipped)
 	 */
-	private FrameThread stepThread = new FrameThread() {
+	private final StepThread stepThread = new StepThread();
+
+	private class StepThread extends FrameThread {
+
+		private final Vec2 originShift = new Vec2();
+
+		/**
+		 * Replayer of the rollback in progress
+		 */
+		private StepReplayer replayer;
 
 		@Override
 		protected void onStart(FrameThread self) {
-			Thread.currentThread().setName("Physics Thread");
-			setThreadPriority(THREAD_PRIORITY_BACKGROUND);
-			// our world will need some rest
-			world.setAllowSleep(true);
+			if (!self.isScheduled()) {
+				Thread.currentThread().setName("Physics Thread");
+				setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+			}
+			synchronized (startLock) {
+				ensureWorld();
+				started = true;
+			}
 		}
 
 		@Override
 		protected void frame(float frameTime) {
-			createPendingObjects();
-			deleteStaleObjects();
-			world.step(frameTime, velocityInteractions, positionInteractions);
+			Tracer.begin(Tracer.CREATE);
+			boolean changed = createPendingObjects();
+			Tracer.end(Tracer.CREATE);
+			Tracer.begin(Tracer.DELETE);
+			changed |= deleteStaleObjects();
+			Tracer.end(Tracer.DELETE);
+			if (changed) {
+				bodiesVersion++;
+				queries.invalidate();
+			}
+			final RollbackBuffer rollbackBuffer = PhysicsEngine.this.rollbackBuffer;
+			if (rollbackBuffer != null) {
+				if (!resimulate(rollbackBuffer, frameTime)) {
+					// still in the past, the present waits for the next frames
+					if (changed) {
+						updateDrawOrder();
+					}
+					return;
+				}
+				rollbackBuffer.capture(world, steps, bodiesVersion);
+			}
+			boolean input = changed;
+			if (commands.apply(origin) > 0) {
+				queries.invalidate();
+				input = true;
+			}
+			if (runTasks(tasks)) {
+				// tasks may move bodies or change fixtures without a new step
+				queries.invalidate();
+				input = true;
+			}
+			// after the tasks, which may change the matrix (i.e. the console)
+			input |= collisionMatrix.apply(world);
+			// reading doesn't count as input so they can't keep a settled world running
+			runTasks(readTasks);
+			if (wakeRequested) {
+				wakeRequested = false;
+				input = true;
+			}
+			final SleepPolicy sleepPolicy = PhysicsEngine.this.sleepPolicy;
+			final QualityScaler scaler = qualityScaler;
+			if (sleepPolicy != null && sleepPolicy.isPaused() && !input) {
+				// no body moves until there is some input, but particles still fall and expire
+				updateParticles(scaler, frameTime);
+				return;
+			}
+			Tracer.begin(Tracer.STEP);
+			final boolean stepped = step(frameTime, scaler);
+			Tracer.end(Tracer.STEP);
+			if (stepped && sleepPolicy != null) {
+				sleepPolicy.update(world, frameTime, steps);
+			}
+			if (stepped && scaler != null
+				&& scaler.update(lastStepNanos, lastDrawNanos, 1000000000L / frameRate)) {
+				Log.i(TAG, "Quality level " + scaler.getLevel() + ", "
+					+ scaler.getAverageStepMillis() + "ms per step, "
+					+ scaler.getAverageDrawMillis() + "ms per draw");
+			}
+			if (stepped) {
+				final RegionManager regions = PhysicsEngine.this.regions;
+				if (regions != null && regions.update(world, steps, origin)) {
+					// static objects are never frozen
+					objectSets[BodyType.KINEMATIC.ordinal()].dirty = true;
+					objectSets[BodyType.DYNAMIC.ordinal()].dirty = true;
+					changed = true;
+				}
+				updateParticles(scaler, frameTime);
+				final float originDistance = PhysicsEngine.this.originDistance;
+				if (originDistance > 0 && steps % ORIGIN_CHECK_INTERVAL == 0
+					&& rebase(originDistance)) {
+					// stored states and cached queries have the old positions
+					bodiesVersion++;
+					queries.invalidate();
+					// the new origin is drawn with the new positions
+					changed = true;
+				}
+			}
+			if (changed) {
+				updateDrawOrder();
+			}
+		}
+
+		private void updateParticles(QualityScaler scaler, float frameTime) {
+			if (scaler == null || !scaler.hidesParticles()) {
+				for (ParticleSystem particles : particleSystems) {
+					particles.update(world, frameTime, origin);
+				}
+			}
+		}
+
+		/**
+		 * Moves the origin of the world to the active area (the focus of the
+		 * {@link RegionManager} or the middle of the awake bodies) if it's too far from it.
+		 * @return true if the bodies have been moved
+		 */
+		private boolean rebase(float distance) {
+			final RegionManager regions = PhysicsEngine.this.regions;
+			final float[] focus = regions != null ? regions.getFocus() : null;
+			float x = 0;
+			float y = 0;
+			if (focus != null) {
+				x = MeasurementUtil.pixelToWorldX(origin, (focus[0] + focus[2]) * 0.5f);
+				y = MeasurementUtil.pixelToWorldY(origin, (focus[1] + focus[3]) * 0.5f);
+			} else {
+				int count = 0;
+				for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+					if (body.getType() != BodyType.STATIC && body.isAwake()) {
+						x += body.getPosition().x;
+						y += body.getPosition().y;
+						count++;
+					}
+				}
+				if (count == 0) {
+					return false;
+				}
+				x /= count;
+				y /= count;
+			}
+			if (Math.abs(x) < distance && Math.abs(y) < distance) {
+				return false;
+			}
+			if (regions != null) {
+				// move by whole cells so they keep their state
+				int columns = Math.round(x / regions.getCellWidth());
+				int rows = Math.round(y / regions.getCellHeight());
+				x = columns * regions.getCellWidth();
+				y = rows * regions.getCellHeight();
+				regions.shift(columns, rows);
+			}
+			for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+				final Vec2 position = body.getPosition();
+				originShift.set(position.x - x, position.y - y);
+				body.setTransform(originShift, body.getAngle());
+			}
+			origin = origin.shift(x, y);
+			return true;
+		}
+
+		/**
+		 * @return true if there were any tasks
+		 */
+		private boolean runTasks(Queue<WorldTask> tasks) {
+			if (tasks.isEmpty()) {
+				return false;
+			}
+			while (!tasks.isEmpty()) {
+				tasks.poll().run(world);
+			}
+			return true;
+		}
+
+		/**
+		 * If there is a rollback request it restores the state of the requested step. Then, while
+		 * the world is in the past, it steps again towards the current step within the budget of
+		 * the frame, letting the replayer apply the inputs of each step.
+		 * @return true if the world is at the current step
+		 */
+		private boolean resimulate(RollbackBuffer buffer, float frameTime) {
+			final long from;
+			final StepReplayer requested;
+			synchronized (rollbackLock) {
+				from = rollbackStep;
+				requested = rollbackReplayer;
+				rollbackStep = -1;
+				rollbackReplayer = null;
+			}
+			if (from >= 0) {
+				if (buffer.rewind(world, from, bodiesVersion)) {
+					replayer = requested;
+				} else {
+					Log.w(TAG, "Can't roll back to step " + from + ", current step is " + steps);
+				}
+			}
+			if (!buffer.isReplaying()) {
+				return true;
+			}
+			final boolean done = buffer.replay(world, steps, bodiesVersion, replayer, frameTime,
+				velocityInteractions, positionInteractions, 1000000000L / frameRate);
+			queries.invalidate();
+			if (done) {
+				replayer = null;
+			}
+			return done;
+		}
+
+		/**
+		 * Steps the world unless the {@link StepGate} holds it back
+		 * @param scaler may halve the iterations, or null
+		 * @return true if the world was stepped
+		 */
+		private boolean step(float frameTime, QualityScaler scaler) {
+			final StepGate gate = stepGate;
+			if (gate != null && !gate.beforeStep(world)) {
+				return false;
+			}
+			int velocity = velocityInteractions;
+			int position = positionInteractions;
+			if (scaler != null && scaler.reducesIterations()) {
+				velocity = Math.max(1, velocity / 2);
+				position = Math.max(1, position / 2);
+			}
+			final long start = System.nanoTime();
+			world.step(frameTime, velocity, position);
+			final long elapsed = System.nanoTime() - start;
+			lastStepNanos = elapsed;
+			totalStepNanos += elapsed;
+			bodyCount = world.getBodyCount();
+			contactCount = world.getContactCount();
+			if (++steps == 1) {
+				timeToFirstStep = (System.nanoTime() - createdAt) / 1000000;
+				Log.i(TAG, "First step " + timeToFirstStep + "ms after creating the engine");
+			}
+			if (gate != null) {
+				gate.afterStep(world);
+			}
+			return true;
 		}
 
 		/**
 		 * Here we iterate over all the objects registered for deletion and ask them to remove
 		 * themselves.
 		 */
-		private void deleteStaleObjects() {
-			while (!objectsToAdd.isEmpty()) {
-				final PhysicsObject victim = objectsToAdd.poll();
-				victim.onDestroy(world);
-				victims.remove(victim);
+		private boolean deleteStaleObjects() {
+			boolean changed = false;
+			while (!objectsToRemove.isEmpty()) {
+				final PhysicsObject victim = objectsToRemove.poll();
+				if (victims.remove(victim)) {
+					victim.onDestroy(world);
+					setOf(victim).remove();
+					changed = true;
+				}
 			}
+			return changed;
 		}
 
 		/**
 		 * Here we iterate over all the objects registered for creation and ask them to create
 		 * themselves.
 		 */
-		private void createPendingObjects() {
+		private boolean createPendingObjects() {
+			if (objectsToAdd.isEmpty() && batchesToAdd.isEmpty()) {
+				return false;
+			}
 			while (!objectsToAdd.isEmpty()) {
-				final PhysicsObject victim = objectsToAdd.poll();
-				victim.onCreate(world);
-				victims.add(victim);
+				create(objectsToAdd.poll());
 			}
+			while (!batchesToAdd.isEmpty()) {
+				for (PhysicsObject victim : batchesToAdd.poll()) {
+					create(victim);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Creates the bodies of the object and stores its id in them. The world adds new bodies
+		 * at the start of its list, so the ones created by the object are the ones before the
+		 * previous first body.
+		 */
+		private void create(PhysicsObject victim) {
+			final Body previous = world.getBodyList();
+			victim.onCreate(world);
+			final Object key = victims.add(victim);
+			for (Body body = world.getBodyList(); body != previous; body = body.getNext()) {
+				body.setUserData(key);
+			}
+			setOf(victim).add(victim);
 		}
 
-	};
+		private ObjectSet setOf(PhysicsObject victim) {
+			return objectSets[victim.getBodyType().ordinal()];
+		}
+
+		/**
+		 * Sorts the objects of each set that has changed by style for
+		 * {@link #drawWorld(Canvas)}. Sorting is stable so objects with the same style keep the
+		 * order in which they were added. Objects hidden by the {@link RegionManager} are left out.
+		 */
+		private void updateDrawOrder() {
+			final RegionManager regions = PhysicsEngine.this.regions;
+			final PhysicsObject[][] result = drawOrder.objects.clone();
+			for (int type = 0; type < objectSets.length; type++) {
+				final ObjectSet set = objectSets[type];
+				if (!set.dirty) {
+					continue;
+				}
+				List<PhysicsObject> visible = new ArrayList<>(set.objects.size());
+				// removed objects are only dropped here, keeping the order of the rest
+				int kept = 0;
+				for (int i = 0; i < set.objects.size(); i++) {
+					final PhysicsObject victim = set.objects.get(i);
+					final int id = victims.getId(victim);
+					if (id < 0) {
+						continue;
+					}
+					set.objects.set(kept++, victim);
+					if (regions == null || !regions.isHidden(id)) {
+						visible.add(victim);
+					}
+				}
+				set.objects.subList(kept, set.objects.size()).clear();
+				PhysicsObject[] objects = visible.toArray(new PhysicsObject[visible.size()]);
+				Arrays.sort(objects, StyleRegistry.BY_STYLE);
+				result[type] = objects;
+				set.dirty = false;
+			}
+			drawOrder = new DrawOrder(result, origin);
+		}
+
+	}
+
+	/**
+	 * Objects to draw and the origin of the world they were published with, so the render thread
+	 * sees both changes at once
+	 */
+	private static final class DrawOrder {
+
+		final PhysicsObject[][] objects;
+		final Origin origin;
+
+		DrawOrder(PhysicsObject[][] objects, Origin origin) {
+			this.objects = objects;
+			this.origin = origin;
+		}
+
+	}
 
 	/**
 	 * Main constructor
 	 * @param frameRate
 	 */
 	public PhysicsEngine(int frameRate) {
+		checkFrameRate(frameRate);
 		this.frameRate = frameRate;
 	}
 
@@ -132,6 +656,44 @@ public class PhysicsEngine {
 		this(DEFAULT_FRAME_RATE);
 	}
 
+	/**
+	 * Builds the world and creates the bodies of the objects added so far in the calling thread.
+	 * It's optional and meant to be called from a background thread before {@link #start()}
+	 * (i.e. while the layout is inflated, see {@link Preloader}) so the first frames don't have
+	 * to do it. It does nothing once the engine has started.
+	 */
+	public void prepare() {
+		synchronized (startLock) {
+			if (started) {
+				return;
+			}
+			ensureWorld();
+			if (stepThread.createPendingObjects()) {
+				bodiesVersion++;
+				stepThread.updateDrawOrder();
+			}
+		}
+	}
+
+	/**
+	 * Creates the world if it's not there yet. Must be called holding {@link #startLock}.
+	 */
+	private void ensureWorld() {
+		if (world == null) {
+			world = new World(new Vec2(gravityX, gravityY));
+			// our world will need some rest
+			world.setAllowSleep(true);
+		}
+	}
+
+	/**
+	 * @return milliseconds between the creation of the engine and its first step or -1 if it
+	 * hasn't stepped yet
+	 */
+	public long getTimeToFirstStep() {
+		return timeToFirstStep;
+	}
+
 	/**
 	 * Start your engines! This will initiate the internal frame thread
 	 */
@@ -139,6 +701,18 @@ public class PhysicsEngine {
 		stepThread.start(frameRate);
 	}
 
+	/**
+	 * Steps the world in an executor instead of a thread of its own, so many engines (i.e.
+	 * simulating matches on a server or in tests) can share a few threads. It's used from the
+	 * next time the engine is started.
+	 * @param executor shared by the engines or null to use a thread
+	 * @return self
+	 */
+	public PhysicsEngine setExecutor(ScheduledExecutorService executor) {
+		stepThread.setExecutor(executor);
+		return this;
+	}
+
 	/**
 	 * Ok, time to stop. It will stop the internal frame thread
 	 */
@@ -148,15 +722,491 @@ public class PhysicsEngine {
 
 	/**
 	 * Anybody with canvas can request to paint the world into themselves.
-	 * This will iterate over each of the attached objects and paint them.
+	 * This will iterate over each of the attached objects and paint them. Static objects are
+	 * painted first and objects are grouped by their style to reduce paint changes.
 	 * @param canvas a place to paint
 	 */
 	public void drawWorld(Canvas canvas) {
-		for (PhysicsObject victim : victims) {
-			victim.draw(canvas);
+		final long start = System.nanoTime();
+		final QualityScaler scaler = qualityScaler;
+		final ParallelRenderer renderer = parallelRenderer;
+		final DrawOrder drawOrder = this.drawOrder;
+		drawOrigin = drawOrder.origin;
+		if (renderer != null) {
+			renderer.draw(canvas, drawOrder.objects);
+		} else {
+			for (PhysicsObject[] objects : drawOrder.objects) {
+				for (PhysicsObject victim : objects) {
+					victim.draw(canvas);
+				}
+			}
+		}
+		if (scaler == null || !scaler.hidesParticles()) {
+			for (ParticleSystem particles : particleSystems) {
+				particles.draw(canvas);
+			}
+		}
+		lastDrawNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Called by the view from the render thread on each frame, before locking its canvas
+	 * @return false if the frame must not be drawn because the {@link QualityScaler} has lowered
+	 * the render rate
+	 */
+	public boolean shouldDraw() {
+		final QualityScaler scaler = qualityScaler;
+		final int interval = scaler != null ? scaler.getRenderInterval() : 1;
+		return renderFrames++ % interval == 0;
+	}
+
+	/**
+	 * Enables partitioning of the world so areas without activity are frozen. Useful for big
+	 * tables.
+	 * @param regions used to partition the world or null to disable it. Bodies already frozen are
+	 *                not thawed when disabling.
+	 * @return self
+	 */
+	public PhysicsEngine setRegionManager(RegionManager regions) {
+		this.regions = regions;
+		return this;
+	}
+
+	/**
+	 * Objects use it to set up their fixtures when they are created. Changes are applied to
+	 * existing objects all at once before the next step.
+	 * @return the collision matrix used by the objects of this engine
+	 */
+	public CollisionMatrix getCollisionMatrix() {
+		return collisionMatrix;
+	}
+
+	/**
+	 * Allows to control when the world is stepped (i.e. lockstep simulation). Steps always use
+	 * the fixed time of the frame rate so they only depend on how many of them are done.
+	 * @param gate used before and after each step or null to step on every frame
+	 * @return self
+	 */
+	public PhysicsEngine setStepGate(StepGate gate) {
+		this.stepGate = gate;
+		return this;
+	}
+
+	/**
+	 * Allows to detect when every body has stopped, freeze bodies that are nearly still and stop
+	 * stepping the world while nothing moves
+	 * @param policy used after each step or null to disable it
+	 * @return self
+	 */
+	public PhysicsEngine setSleepPolicy(SleepPolicy policy) {
+		this.sleepPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Lowers the quality of the simulation and the drawing when steps and draws take longer
+	 * than the frame allows, and raises it again when there is room. Not meant to be used with
+	 * a {@link StepGate} or a {@link RollbackBuffer}, as it changes how the world is stepped.
+	 * @param scaler updated after each step or null to always use full quality
+	 * @return self
+	 */
+	public PhysicsEngine setQualityScaler(QualityScaler scaler) {
+		this.qualityScaler = scaler;
+		return this;
+	}
+
+	/**
+	 * Steps the world on the next frame even if it has settled and the {@link SleepPolicy}
+	 * pauses it. Bodies asleep stay asleep.
+	 */
+	public void wake() {
+		wakeRequested = true;
+	}
+
+	/**
+	 * Enables rolling back to past steps with {@link #rollback(long, StepReplayer)}. The state of
+	 * the world is stored before each step.
+	 * @param buffer where states are kept or null to disable it
+	 * @return self
+	 */
+	public PhysicsEngine setRollbackBuffer(RollbackBuffer buffer) {
+		this.rollbackBuffer = buffer;
+		return this;
+	}
+
+	/**
+	 * Records how objects are drawn using several threads before drawing them, which helps with
+	 * thousands of objects. See {@link ParallelRenderer}.
+	 * @param threads number of worker threads besides the render thread or 0 to draw the objects
+	 *                one by one in the render thread
+	 * @return self
+	 */
+	public PhysicsEngine setParallelRendering(int threads) {
+		final ParallelRenderer previous = parallelRenderer;
+		parallelRenderer = threads > 0 ? new ParallelRenderer(threads) : null;
+		if (previous != null) {
+			previous.release();
+		}
+		return this;
+	}
+
+	/**
+	 * Adds particles to be updated after each step and drawn after the objects
+	 * @param particles system to add
+	 * @return self
+	 */
+	public PhysicsEngine addParticleSystem(ParticleSystem particles) {
+		particleSystems.add(particles);
+		return this;
+	}
+
+	/**
+	 * @param particles system to stop updating and drawing
+	 * @return self
+	 */
+	public PhysicsEngine removeParticleSystem(ParticleSystem particles) {
+		particleSystems.remove(particles);
+		return this;
+	}
+
+	/**
+	 * Turns on the floating origin, for very big worlds. Every now and then, if the active area
+	 * (the focus of the {@link RegionManager} or the middle of the awake bodies) is too far from
+	 * the origin of the world, all the bodies are moved so it's back at the origin. Positions in
+	 * the world stay small so they keep their precision, and the offset is applied when
+	 * converting between pixels and the world in {@link MeasurementUtil}, so objects are drawn
+	 * in the same place.
+	 * <p/>
+	 * Objects must use {@link MeasurementUtil#pixelToWorldX(Origin, float)} and the like to
+	 * convert positions, with {@link #getOrigin()} in the physics thread and
+	 * {@link #getDrawOrigin()} when drawing. Rolling back past a move of the origin is not
+	 * possible. Joints with anchors in world coordinates (i.e. mouse joints) are not moved.
+	 * @param distance in pixels the active area can get from the origin or 0 to turn it off
+	 * @return self
+	 */
+	public PhysicsEngine setFloatingOrigin(float distance) {
+		this.originDistance = MeasurementUtil.pixelToMeters(distance);
+		return this;
+	}
+
+	/**
+	 * @return origin of the world as it is in the physics thread, where it moves
+	 */
+	public Origin getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return origin of the world the objects being drawn have to use, which is published with
+	 * the positions of the bodies so they don't jump when the origin moves
+	 */
+	public Origin getDrawOrigin() {
+		return drawOrigin;
+	}
+
+	/**
+	 * Requests the world to go back to the state before the given step and simulate again up to
+	 * the current step, starting on the next frame. Safe to call from any thread. If the steps
+	 * don't fit in the budget of a frame (see {@link RollbackBuffer#setBudget(float)}), they are
+	 * spread over the next frames and the current step is held until the world catches up.
+	 * <p/>
+	 * Commands sent with {@link #applyImpulse(Body, float, float)} and similar are not replayed,
+	 * the replayer has to apply again any input needed (including the late one) on each step.
+	 * If several requests arrive before the next frame, the earliest step is used.
+	 * The request is ignored if the step is not in the {@link RollbackBuffer} anymore or objects
+	 * have been created or removed since.
+	 * @param step number of the step to go back to, as in {@link #getStepCount()}
+	 * @param replayer called before each step is simulated again
+	 */
+	public void rollback(long step, StepReplayer replayer) {
+		synchronized (rollbackLock) {
+			if (rollbackStep < 0 || step < rollbackStep) {
+				rollbackStep = step;
+			}
+			rollbackReplayer = replayer;
 		}
 	}
 
+	/**
+	 * Runs a task in the physics thread before the next step, where it's safe to read and modify
+	 * the world. Tasks should be short as they delay the step. Safe to call from any thread.
+	 * @param task to run
+	 */
+	public void post(WorldTask task) {
+		tasks.add(task);
+	}
+
+	/**
+	 * Same as {@link #post(WorldTask)} for tasks that only read the world (i.e. queries or
+	 * copies of its state). Unlike other tasks, they don't count as input for the
+	 * {@link SleepPolicy} so they don't wake up a settled world.
+	 * @param task to run, it must not change the world
+	 */
+	public void postRead(WorldTask task) {
+		readTasks.add(task);
+	}
+
+	/**
+	 * Finds the bodies whose bounding boxes overlap an area. Safe to call from any thread, the
+	 * query runs in the physics thread before the next step.
+	 * @param left of the area in pixels
+	 * @param top of the area in pixels
+	 * @param right of the area in pixels
+	 * @param bottom of the area in pixels
+	 * @param result buffer to fill, it can be reused once the listener is notified
+	 * @param listener notified from the physics thread
+	 */
+	public void queryArea(float left, float top, float right, float bottom, QueryResult result,
+	                      QueryListener listener) {
+		query(WorldQuery.AREA, left, top, right, bottom, result, listener);
+	}
+
+	/**
+	 * Finds the bodies under a point (i.e. the ball under the finger). Safe to call from any
+	 * thread, the query runs in the physics thread before the next step.
+	 * @param x horizontal position in pixels
+	 * @param y vertical position in pixels
+	 * @param result buffer to fill, it can be reused once the listener is notified
+	 * @param listener notified from the physics thread
+	 */
+	public void queryPoint(float x, float y, QueryResult result, QueryListener listener) {
+		query(WorldQuery.POINT, x, y, x, y, result, listener);
+	}
+
+	/**
+	 * Finds the bodies crossed by a segment, sorted by distance from the start (i.e. to know if
+	 * the goal mouth is blocked). Safe to call from any thread, the query runs in the physics
+	 * thread before the next step.
+	 * @param fromX horizontal start of the ray in pixels
+	 * @param fromY vertical start of the ray in pixels
+	 * @param toX horizontal end of the ray in pixels
+	 * @param toY vertical end of the ray in pixels
+	 * @param result buffer to fill, it can be reused once the listener is notified
+	 * @param listener notified from the physics thread
+	 */
+	public void raycast(float fromX, float fromY, float toX, float toY, QueryResult result,
+	                    QueryListener listener) {
+		query(WorldQuery.RAY, fromX, fromY, toX, toY, result, listener);
+	}
+
+	private void query(final int type, final float a, final float b, final float c,
+	                   final float d, final QueryResult result, final QueryListener listener) {
+		postRead(new WorldTask() {
+			@Override
+			public void run(World world) {
+				// converted here as the origin only moves in this thread
+				final Origin origin = PhysicsEngine.this.origin;
+				final float x1 = MeasurementUtil.pixelToWorldX(origin, a);
+				final float y1 = MeasurementUtil.pixelToWorldY(origin, b);
+				final float x2 = MeasurementUtil.pixelToWorldX(origin, c);
+				final float y2 = MeasurementUtil.pixelToWorldY(origin, d);
+				queries.run(world, steps, origin, type, x1, y1, x2, y2, result);
+				listener.onQueryResult(result);
+			}
+		});
+	}
+
+	/**
+	 * @return frames (steps) per second used by the engine
+	 */
+	public int getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * @return time, in seconds, the world is stepped each frame. It's worked out from whole
+	 * milliseconds like {@link FrameThread} does so it's not exactly 1 / frame rate.
+	 */
+	public float getStepTime() {
+		return (1000 / frameRate) / 1000f;
+	}
+
+	/**
+	 * Changes the frame rate, and the time of each step, from the next frame. Safe to call at
+	 * any time.
+	 * @param frameRate frames (steps) per second, up to {@link FrameThread#MAX_FRAME_RATE}
+	 * @return self
+	 */
+	public PhysicsEngine setFrameRate(int frameRate) {
+		checkFrameRate(frameRate);
+		this.frameRate = frameRate;
+		stepThread.setFrameRate(frameRate);
+		return this;
+	}
+
+	static void checkFrameRate(int frameRate) {
+		if (frameRate <= 0 || frameRate > FrameThread.MAX_FRAME_RATE) {
+			throw new IllegalArgumentException("Invalid frame rate: " + frameRate);
+		}
+	}
+
+	int getVelocityIterations() {
+		return velocityInteractions;
+	}
+
+	int getPositionIterations() {
+		return positionInteractions;
+	}
+
+	/**
+	 * Changes the iterations of the solver from the next step. Safe to call from any thread.
+	 * @param velocity iterations of the velocity constraint solver
+	 * @param position iterations of the position constraint solver
+	 * @return self
+	 */
+	public PhysicsEngine setIterations(final int velocity, final int position) {
+		checkIterations(velocity, position);
+		post(new WorldTask() {
+			@Override
+			public void run(World world) {
+				applyIterations(velocity, position);
+			}
+		});
+		return this;
+	}
+
+	static void checkIterations(int velocity, int position) {
+		if (velocity <= 0 || position <= 0) {
+			throw new IllegalArgumentException(
+				"Invalid iterations: " + velocity + ", " + position);
+		}
+	}
+
+	/**
+	 * Must be called from the physics thread
+	 */
+	void applyIterations(int velocity, int position) {
+		velocityInteractions = velocity;
+		positionInteractions = position;
+	}
+
+	/**
+	 * Changes the gravity from the next step. Safe to call from any thread.
+	 * @param x horizontal gravity in meters per second squared
+	 * @param y vertical gravity in meters per second squared
+	 * @return self
+	 */
+	public PhysicsEngine setGravity(final float x, final float y) {
+		checkGravity(x, y);
+		post(new WorldTask() {
+			@Override
+			public void run(World world) {
+				applyGravity(world, x, y);
+			}
+		});
+		gravityX = x;
+		gravityY = y;
+		return this;
+	}
+
+	static void checkGravity(float x, float y) {
+		if (Float.isNaN(x) || Float.isInfinite(x) || Float.isNaN(y) || Float.isInfinite(y)) {
+			throw new IllegalArgumentException("Invalid gravity: " + x + ", " + y);
+		}
+	}
+
+	/**
+	 * Must be called from the physics thread
+	 */
+	void applyGravity(World world, float x, float y) {
+		gravityX = x;
+		gravityY = y;
+		world.setGravity(new Vec2(x, y));
+	}
+
+	public float getGravityX() {
+		return gravityX;
+	}
+
+	public float getGravityY() {
+		return gravityY;
+	}
+
+	/**
+	 * @return nanoseconds taken by the last step
+	 */
+	public long getLastStepNanos() {
+		return lastStepNanos;
+	}
+
+	/**
+	 * @return nanoseconds taken by all the steps so far, to work out averages
+	 */
+	public long getTotalStepNanos() {
+		return totalStepNanos;
+	}
+
+	/**
+	 * @return number of bodies in the world after the last step
+	 */
+	public int getBodyCount() {
+		return bodyCount;
+	}
+
+	/**
+	 * Must only be called from the physics thread (i.e. from a {@link StepGate}).
+	 * @return a number that changes every time objects are created or deleted or the origin of
+	 * the world moves
+	 */
+	public int getBodiesVersion() {
+		return bodiesVersion;
+	}
+
+	/**
+	 * @return number of contacts in the world after the last step
+	 */
+	public int getContactCount() {
+		return contactCount;
+	}
+
+	/**
+	 * @return number of steps done so far
+	 */
+	public long getStepCount() {
+		return steps;
+	}
+
+	/**
+	 * @return a copy of the objects currently in the world, used by {@link FootprintAnalyzer}
+	 */
+	List<PhysicsObject> getObjects() {
+		return victims.snapshot();
+	}
+
+	/**
+	 * @return number of objects currently in the world
+	 */
+	public int getObjectCount() {
+		return victims.size();
+	}
+
+	/**
+	 * Finds the object a body belongs to (i.e. the bodies of a contact) in constant time.
+	 * @param body created by an object of this engine
+	 * @return the object that created the body or null if there is none, as when the object has
+	 * been removed. For compound objects it's the object added to the engine and not the child.
+	 */
+	public PhysicsObject getObject(Body body) {
+		return victims.get(body);
+	}
+
+	/**
+	 * @param id of an object, see {@link #getObjectId(PhysicsObject)}
+	 * @return the object with the id or null if there is none
+	 */
+	public PhysicsObject getObject(int id) {
+		return victims.get(id);
+	}
+
+	/**
+	 * Ids are given when objects are created and kept until they are removed, then they can be
+	 * given to new objects. The id is also kept in the user data of the bodies of the object.
+	 * @return the id of the object or -1 if it's not in the world
+	 */
+	public int getObjectId(PhysicsObject object) {
+		return victims.getId(object);
+	}
+
 	/**
 	 * This MUST be used if any of the objects requires relative positioning (and sizing in the
 	 * future)
@@ -166,12 +1216,22 @@ public class PhysicsEngine {
 	 * @return self
 	 */
 	public PhysicsEngine setWorldSize(int width, int height) {
-		this.width = width;
-		this.height = height;
-		while(!relativeObjects.isEmpty()) {
-			final PhysicsObject object = relativeObjects.poll();
-			object.setupRelative(width, height);
-			add(object);
+		final List<PhysicsObject> ready = new ArrayList<>();
+		synchronized (sizeLock) {
+			this.width = width;
+			this.height = height;
+			for (int i = relativeObjects.size(); i > 0; i--) {
+				final PhysicsObject object = relativeObjects.poll();
+				object.setupRelative(width, height);
+				if (object.requiresRelative()) {
+					relativeObjects.add(object);
+				} else {
+					ready.add(object);
+				}
+			}
+		}
+		if (!ready.isEmpty()) {
+			batchesToAdd.add(ready.toArray(new PhysicsObject[ready.size()]));
 		}
 		return this;
 	}
@@ -185,19 +1245,113 @@ public class PhysicsEngine {
 	 */
 	public PhysicsEngine add(PhysicsObject victim) {
 		victim.onAttach(this);
-		// we may already have a size. This should make the object not require relative
-		// updates in the following step
-		if (width + height > 0) {
-			victim.setupRelative(width, height);
+		synchronized (sizeLock) {
+			// we may already have a size. This should make the object not require relative
+			// updates in the following step
+			if (width + height > 0) {
+				victim.setupRelative(width, height);
+			}
+			if (victim.requiresRelative()) {
+				relativeObjects.add(victim);
+				return this;
+			}
 		}
-		if (victim.requiresRelative()) {
-			relativeObjects.add(victim);
-		} else {
-			objectsToAdd.add(victim);
+		objectsToAdd.add(victim);
+		return this;
+	}
+
+	/**
+	 * Same as {@link #add(PhysicsObject)} for many objects at once. All of them are created in the
+	 * same step and published to the physics thread as a single entry, which is a lot cheaper when
+	 * adding a big number of objects (i.e. setting up a rack or a particle test).
+	 * @param objects to be added
+	 * @return self
+	 */
+	public PhysicsEngine addAll(PhysicsObject... objects) {
+		PhysicsObject[] batch = new PhysicsObject[objects.length];
+		int count = 0;
+		for (PhysicsObject victim : objects) {
+			victim.onAttach(this);
+		}
+		synchronized (sizeLock) {
+			final boolean sized = width + height > 0;
+			for (PhysicsObject victim : objects) {
+				if (sized) {
+					victim.setupRelative(width, height);
+				}
+				if (victim.requiresRelative()) {
+					relativeObjects.add(victim);
+				} else {
+					batch[count++] = victim;
+				}
+			}
+		}
+		if (count > 0) {
+			batchesToAdd.add(count == batch.length ? batch : Arrays.copyOf(batch, count));
 		}
 		return this;
 	}
 
+	/**
+	 * Same as {@link #addAll(PhysicsObject...)} with a collection
+	 */
+	public PhysicsEngine addAll(Collection<? extends PhysicsObject> objects) {
+		return addAll(objects.toArray(new PhysicsObject[objects.size()]));
+	}
+
+	/**
+	 * Creates and adds a number of objects at once
+	 * @param count number of objects to create
+	 * @param spawner used to create each object
+	 * @return self
+	 * @see #addAll(PhysicsObject...)
+	 */
+	public PhysicsEngine spawn(int count, Spawner spawner) {
+		PhysicsObject[] objects = new PhysicsObject[count];
+		for (int i = 0; i < count; i++) {
+			objects[i] = spawner.create(i);
+		}
+		return addAll(objects);
+	}
+
+	/**
+	 * Schedules a linear impulse to be applied to the center of the body on the next step.
+	 * Impulses sent to the same body before the step are added up. Safe to call from any thread.
+	 * @param body a body created by an object of this engine
+	 * @param x horizontal impulse in world units (N-seconds)
+	 * @param y vertical impulse in world units (N-seconds)
+	 * @return false if there are too many commands pending and this one was dropped
+	 */
+	public boolean applyImpulse(Body body, float x, float y) {
+		return commands.offer(CommandQueue.IMPULSE, body, x, y, 0);
+	}
+
+	/**
+	 * Schedules a force to be applied to the center of the body during the next step.
+	 * Forces sent to the same body before the step are added up. Safe to call from any thread.
+	 * @param body a body created by an object of this engine
+	 * @param x horizontal force in world units (Newtons)
+	 * @param y vertical force in world units (Newtons)
+	 * @return false if there are too many commands pending and this one was dropped
+	 */
+	public boolean applyForce(Body body, float x, float y) {
+		return commands.offer(CommandQueue.FORCE, body, x, y, 0);
+	}
+
+	/**
+	 * Schedules the body to be moved on the next step, stopping it. If the body is teleported more
+	 * than once before the step only the last one is used. Safe to call from any thread.
+	 * @param body a body created by an object of this engine
+	 * @param x horizontal position in pixels
+	 * @param y vertical position in pixels
+	 * @param angle new rotation in radians
+	 * @return false if there are too many commands pending and this one was dropped
+	 */
+	public boolean teleport(Body body, float x, float y, float angle) {
+		// converted when applied, the origin may move before then
+		return commands.offer(CommandQueue.TELEPORT, body, x, y, angle);
+	}
+
 	/**
 	 * Schedules objects to be removed from the {@link #world}
 	 *
@@ -209,4 +1363,77 @@ public class PhysicsEngine {
 		return this;
 	}
 
+	/**
+	 * Used with {@link #rollback(long, StepReplayer)} to apply the inputs of each step that is
+	 * simulated again.
+	 */
+	public interface StepReplayer {
+
+		/**
+		 * Called from the physics thread before simulating a step again
+		 * @param world about to be stepped
+		 * @param step number of the step
+		 */
+		void onReplay(World world, long step);
+
+	}
+
+	private static ObjectSet[] createObjectSets() {
+		ObjectSet[] result = new ObjectSet[BODY_TYPES.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new ObjectSet();
+		}
+		return result;
+	}
+
+	/**
+	 * Objects whose bodies are of the same type
+	 */
+	private static final class ObjectSet {
+
+		final List<PhysicsObject> objects = new ArrayList<>();
+
+		/**
+		 * True when the draw order of the set has to be updated
+		 */
+		boolean dirty;
+
+		void add(PhysicsObject victim) {
+			objects.add(victim);
+			dirty = true;
+		}
+
+		/**
+		 * Called when one of the objects has been removed from the engine, it's taken out of
+		 * the set when updating the draw order
+		 */
+		void remove() {
+			dirty = true;
+		}
+
+	}
+
+	/**
+	 * Creates objects for {@link #spawn(int, Spawner)}
+	 */
+	public interface Spawner {
+
+		/**
+		 * @param index of the object, from 0 to count - 1
+		 * @return a new object
+		 */
+		PhysicsObject create(int index);
+
+	}
+
+	/**
+	 * Work to be done with the world in the physics thread
+	 * @see #post(WorldTask)
+	 */
+	public interface WorldTask {
+
+		void run(World world);
+
+	}
+
 }
@@ -4,6 +4,7 @@ import android.graphics.Canvas;
 
 import org.jbox2d.dynamics.Body;
 import org.jbox2d.dynamics.BodyDef;
+import org.jbox2d.dynamics.BodyType;
 import org.jbox2d.dynamics.World;
 
 /**
@@ -38,6 +39,22 @@ public interface PhysicsObject {
 	 */
 	void draw(Canvas canvas);
 
+	/**
+	 * Used by {@link PhysicsEngine#drawWorld(android.graphics.Canvas)} to group objects drawn with
+	 * the same paint.
+	 * @return the id in {@link StyleRegistry} used to draw this object or
+	 * {@link StyleRegistry#NO_STYLE} if it uses more than one
+	 */
+	int getStyleId();
+
+	/**
+	 * Used by {@link PhysicsEngine} to keep objects that can't move apart from the ones that can.
+	 * @return the type of the bodies of the object. Objects with bodies of different types return
+	 * the one that moves the most ({@link BodyType#DYNAMIC} over {@link BodyType#KINEMATIC} over
+	 * {@link BodyType#STATIC}).
+	 */
+	BodyType getBodyType();
+
 	/**
 	 * This method will be called when the object is added to the {@link PhysicsEngine} but not yet
 	 * ready. It'll wait for next step to be created. This is used to provide a reference to the
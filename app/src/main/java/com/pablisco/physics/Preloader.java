@@ -0,0 +1,96 @@
+package com.pablisco.physics;
+
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+/**
+ * Gets a {@link PhysicsEngine} ready in a background thread while the UI is being set up, so the
+ * first frames are not spent loading classes and building the table.
+ * <p/>
+ * It loads the jbox2d classes used on every step, builds the objects of the table, adds them to
+ * the engine and calls {@link PhysicsEngine#prepare()} to create the world and their bodies.
+ * Objects that require a relative layout are created once the engine gets its size, which may be
+ * set from the UI thread while the objects are being added.
+ */
+public final class Preloader {
+
+	private static final String TAG = Preloader.class.getSimpleName();
+
+	/**
+	 * Classes used when creating bodies and stepping the world
+	 */
+	private static final String[] HOT_CLASSES = {
+		"org.jbox2d.dynamics.World",
+		"org.jbox2d.dynamics.Body",
+		"org.jbox2d.dynamics.Fixture",
+		"org.jbox2d.dynamics.Island",
+		"org.jbox2d.dynamics.ContactManager",
+		"org.jbox2d.dynamics.TimeStep",
+		"org.jbox2d.dynamics.contacts.ContactSolver",
+		"org.jbox2d.dynamics.contacts.PolygonContact",
+		"org.jbox2d.dynamics.contacts.CircleContact",
+		"org.jbox2d.dynamics.contacts.PolygonAndCircleContact",
+		"org.jbox2d.dynamics.contacts.ChainAndPolygonContact",
+		"org.jbox2d.dynamics.contacts.ChainAndCircleContact",
+		"org.jbox2d.collision.Collision",
+		"org.jbox2d.collision.Distance",
+		"org.jbox2d.collision.TimeOfImpact",
+		"org.jbox2d.collision.broadphase.BroadPhase",
+		"org.jbox2d.collision.broadphase.DynamicTree",
+		"org.jbox2d.collision.shapes.PolygonShape",
+		"org.jbox2d.collision.shapes.ChainShape",
+		"org.jbox2d.collision.shapes.CircleShape",
+		"org.jbox2d.collision.shapes.EdgeShape",
+		"org.jbox2d.pooling.normal.DefaultWorldPool"
+	};
+
+	private Preloader() {
+		// no instances
+	}
+
+	/**
+	 * Loads and initialises the jbox2d classes used on every step
+	 */
+	public static void preloadClasses() {
+		final ClassLoader loader = Preloader.class.getClassLoader();
+		for (String name : HOT_CLASSES) {
+			try {
+				Class.forName(name, true, loader);
+			} catch (ClassNotFoundException e) {
+				Log.w(TAG, "Can't preload " + name);
+			}
+		}
+	}
+
+	/**
+	 * Starts getting the engine ready in a background thread
+	 * @param engine to prepare, before it's started
+	 * @param table builds the objects to add to the engine or null if there are none
+	 * @return the thread doing the work
+	 */
+	public static Thread prepareInBackground(final PhysicsEngine engine,
+	                                         final Callable<Collection<PhysicsObject>> table) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				preloadClasses();
+				if (table != null) {
+					try {
+						engine.addAll(table.call());
+					} catch (Exception e) {
+						Log.e(TAG, "Can't build the table", e);
+					}
+				}
+				engine.prepare();
+				Log.i(TAG, "Engine prepared in " + (System.nanoTime() - start) / 1000000 + "ms");
+			}
+		}, "Preload Thread");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.pablisco.physics;
+
+/**
+ * Keeps the work of each frame within its budget by lowering the quality of the simulation and
+ * the drawing when the device can't keep up, and raising it again when there is room, so frames
+ * are steady on slow and fast devices alike instead of being skipped.
+ * <p/>
+ * It watches the time taken by each step and each draw of the {@link PhysicsEngine}, smoothed
+ * over several frames. Steps and draws run in different threads, so each is compared to the
+ * budget on its own. It moves one level at a time:
+ * <ol>
+ *     <li>{@link #FEWER_ITERATIONS}, the solver does half the iterations</li>
+ *     <li>{@link #NO_PARTICLES}, {@link ParticleSystem}s are neither updated nor drawn</li>
+ *     <li>{@link #HALF_RENDER_RATE}, the world is drawn every other frame</li>
+ * </ol>
+ * Levels are lowered quickly and raised slowly, so it doesn't keep going back and forth.
+ * <p/>
+ * It changes how the world is stepped so it must not be used with lockstep or rollback.
+ *
+ * @see PhysicsEngine#setQualityScaler(QualityScaler)
+ */
+public class QualityScaler {
+
+	public static final int FULL = 0;
+	public static final int FEWER_ITERATIONS = 1;
+	public static final int NO_PARTICLES = 2;
+	public static final int HALF_RENDER_RATE = 3;
+
+	/**
+	 * Weight of the last frame in the average
+	 */
+	private static final double SMOOTHING = 0.1;
+
+	private float highWater = 0.9f;
+	private float lowWater = 0.6f;
+	private int degradeFrames = 30;
+	private int restoreFrames = 120;
+	private int maxLevel = HALF_RENDER_RATE;
+
+	private volatile int level = FULL;
+
+	/**
+	 * Smoothed nanoseconds taken by each step and each draw. Only written by the physics thread.
+	 */
+	private volatile double averageStep, averageDraw;
+
+	/**
+	 * Consecutive frames over the high water mark or under the low one. Only used in the physics
+	 * thread.
+	 */
+	private int over, under;
+
+	/**
+	 * @param high fraction of the frame budget that, once exceeded, lowers the quality
+	 * @param low fraction of the frame budget under which the quality is raised again
+	 * @return self
+	 */
+	public QualityScaler setThresholds(float high, float low) {
+		if (low <= 0 || low >= high) {
+			throw new IllegalArgumentException("Invalid thresholds: " + high + ", " + low);
+		}
+		this.highWater = high;
+		this.lowWater = low;
+		return this;
+	}
+
+	/**
+	 * @param degradeFrames frames over budget before lowering the quality
+	 * @param restoreFrames frames with room to spare before raising it
+	 * @return self
+	 */
+	public QualityScaler setReaction(int degradeFrames, int restoreFrames) {
+		this.degradeFrames = Math.max(1, degradeFrames);
+		this.restoreFrames = Math.max(1, restoreFrames);
+		return this;
+	}
+
+	/**
+	 * @param maxLevel lowest quality allowed, from {@link #FULL} to {@link #HALF_RENDER_RATE}
+	 * @return self
+	 */
+	public QualityScaler setMaxLevel(int maxLevel) {
+		if (maxLevel < FULL || maxLevel > HALF_RENDER_RATE) {
+			throw new IllegalArgumentException("Invalid level: " + maxLevel);
+		}
+		this.maxLevel = maxLevel;
+		return this;
+	}
+
+	/**
+	 * @return current level, {@link #FULL} when nothing has been lowered
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return smoothed milliseconds taken by each step
+	 */
+	public double getAverageStepMillis() {
+		return averageStep / 1e6;
+	}
+
+	/**
+	 * @return smoothed milliseconds taken by each draw
+	 */
+	public double getAverageDrawMillis() {
+		return averageDraw / 1e6;
+	}
+
+	boolean reducesIterations() {
+		return level >= FEWER_ITERATIONS;
+	}
+
+	boolean hidesParticles() {
+		return level >= NO_PARTICLES;
+	}
+
+	/**
+	 * @return how many frames each drawn frame lasts
+	 */
+	int getRenderInterval() {
+		return level >= HALF_RENDER_RATE ? 2 : 1;
+	}
+
+	/**
+	 * Called by the engine from the physics thread after each step
+	 * @param stepNanos time taken by the step
+	 * @param drawNanos time taken by the last draw
+	 * @param budgetNanos time available for each frame
+	 * @return true if the level has changed
+	 */
+	boolean update(long stepNanos, long drawNanos, long budgetNanos) {
+		averageStep = smooth(averageStep, stepNanos);
+		averageDraw = smooth(averageDraw, drawNanos);
+		// draws have the time of several frames when the render rate is lowered
+		final double drawBudget = (double) budgetNanos * getRenderInterval();
+		if (averageStep > budgetNanos * highWater || averageDraw > drawBudget * highWater) {
+			under = 0;
+			if (++over >= degradeFrames && level < maxLevel) {
+				level++;
+				over = 0;
+				return true;
+			}
+		} else if (averageStep < budgetNanos * lowWater
+			&& averageDraw < drawBudget * lowWater) {
+			over = 0;
+			if (++under >= restoreFrames && level > FULL) {
+				level--;
+				under = 0;
+				return true;
+			}
+		} else {
+			over = 0;
+			under = 0;
+		}
+		return false;
+	}
+
+	private static double smooth(double average, long nanos) {
+		return average == 0 ? nanos : average + (nanos - average) * SMOOTHING;
+	}
+
+}
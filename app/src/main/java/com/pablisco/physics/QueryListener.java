@@ -0,0 +1,15 @@
+package com.pablisco.physics;
+
+/**
+ * Notified when a query of {@link PhysicsEngine} is done
+ */
+public interface QueryListener {
+
+	/**
+	 * Called from the physics thread, so it should be quick. The world is not stepped until it
+	 * returns so the bodies found are still there.
+	 * @param result same instance given to the query
+	 */
+	void onQueryResult(QueryResult result);
+
+}
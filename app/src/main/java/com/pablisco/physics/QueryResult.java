@@ -0,0 +1,187 @@
+package com.pablisco.physics;
+
+import org.jbox2d.dynamics.Body;
+
+/**
+ * Reusable buffer with the bodies found by a query of {@link PhysicsEngine} (i.e.
+ * {@link PhysicsEngine#raycast(float, float, float, float, QueryResult, QueryListener)}).
+ * <p/>
+ * The same instance can be used for many queries, its arrays only grow when a query finds more
+ * bodies than ever before. It's filled in the physics thread so it shouldn't be used for another
+ * query until its {@link QueryListener} has been notified.
+ */
+public class QueryResult {
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private int count;
+	private long step;
+	private boolean cached;
+
+	private Body[] bodies = new Body[INITIAL_CAPACITY];
+	private PhysicsObject[] objects = new PhysicsObject[INITIAL_CAPACITY];
+
+	/* only used by ray casts, in pixels */
+
+	private float[] xs = new float[INITIAL_CAPACITY];
+	private float[] ys = new float[INITIAL_CAPACITY];
+	private float[] normalXs = new float[INITIAL_CAPACITY];
+	private float[] normalYs = new float[INITIAL_CAPACITY];
+	private float[] fractions = new float[INITIAL_CAPACITY];
+
+	/**
+	 * @return number of bodies found
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the step after which the query was done, as in {@link PhysicsEngine#getStepCount()}
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * @return true if the result was copied from an identical query done after the same step
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	public Body getBody(int index) {
+		return bodies[index];
+	}
+
+	/**
+	 * @return the object that created the body or null if it's not known
+	 */
+	public PhysicsObject getObject(int index) {
+		return objects[index];
+	}
+
+	/**
+	 * @return horizontal position, in pixels, where the ray hit the body
+	 */
+	public float getX(int index) {
+		return xs[index];
+	}
+
+	/**
+	 * @return vertical position, in pixels, where the ray hit the body
+	 */
+	public float getY(int index) {
+		return ys[index];
+	}
+
+	public float getNormalX(int index) {
+		return normalXs[index];
+	}
+
+	public float getNormalY(int index) {
+		return normalYs[index];
+	}
+
+	/**
+	 * @return distance along the ray where the body was hit, from 0 (start) to 1 (end)
+	 */
+	public float getFraction(int index) {
+		return fractions[index];
+	}
+
+	void reset(long step) {
+		for (int i = 0; i < count; i++) {
+			bodies[i] = null;
+			objects[i] = null;
+		}
+		count = 0;
+		this.step = step;
+		cached = false;
+	}
+
+	/**
+	 * @return false if the body was already in the result
+	 */
+	boolean add(Body body, PhysicsObject owner) {
+		for (int i = 0; i < count; i++) {
+			if (bodies[i] == body) {
+				return false;
+			}
+		}
+		ensureCapacity(count + 1);
+		bodies[count] = body;
+		objects[count] = owner;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Adds a ray cast hit keeping hits sorted by distance
+	 */
+	void addHit(Body body, PhysicsObject owner, float x, float y, float normalX, float normalY,
+	            float fraction) {
+		ensureCapacity(count + 1);
+		int index = count;
+		while (index > 0 && fractions[index - 1] > fraction) {
+			bodies[index] = bodies[index - 1];
+			objects[index] = objects[index - 1];
+			xs[index] = xs[index - 1];
+			ys[index] = ys[index - 1];
+			normalXs[index] = normalXs[index - 1];
+			normalYs[index] = normalYs[index - 1];
+			fractions[index] = fractions[index - 1];
+			index--;
+		}
+		bodies[index] = body;
+		objects[index] = owner;
+		xs[index] = x;
+		ys[index] = y;
+		normalXs[index] = normalX;
+		normalYs[index] = normalY;
+		fractions[index] = fraction;
+		count++;
+	}
+
+	void copyFrom(QueryResult source) {
+		reset(source.step);
+		ensureCapacity(source.count);
+		count = source.count;
+		System.arraycopy(source.bodies, 0, bodies, 0, count);
+		System.arraycopy(source.objects, 0, objects, 0, count);
+		System.arraycopy(source.xs, 0, xs, 0, count);
+		System.arraycopy(source.ys, 0, ys, 0, count);
+		System.arraycopy(source.normalXs, 0, normalXs, 0, count);
+		System.arraycopy(source.normalYs, 0, normalYs, 0, count);
+		System.arraycopy(source.fractions, 0, fractions, 0, count);
+	}
+
+	void setCached(boolean cached) {
+		this.cached = cached;
+	}
+
+	private void ensureCapacity(int size) {
+		if (size <= bodies.length) {
+			return;
+		}
+		int capacity = Math.max(size, bodies.length * 2);
+		Body[] newBodies = new Body[capacity];
+		System.arraycopy(bodies, 0, newBodies, 0, count);
+		bodies = newBodies;
+		PhysicsObject[] newObjects = new PhysicsObject[capacity];
+		System.arraycopy(objects, 0, newObjects, 0, count);
+		objects = newObjects;
+		xs = grow(xs, capacity);
+		ys = grow(ys, capacity);
+		normalXs = grow(normalXs, capacity);
+		normalYs = grow(normalYs, capacity);
+		fractions = grow(fractions, capacity);
+	}
+
+	private float[] grow(float[] source, int capacity) {
+		float[] result = new float[capacity];
+		System.arraycopy(source, 0, result, 0, count);
+		return result;
+	}
+
+}
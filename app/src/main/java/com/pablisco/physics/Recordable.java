@@ -0,0 +1,17 @@
+package com.pablisco.physics;
+
+/**
+ * Implemented by objects that can describe how they are drawn with a {@link DisplayList}, so
+ * {@link ParallelRenderer} can work it out away from the render thread. Objects that don't
+ * implement it are drawn as usual with {@link PhysicsObject#draw(android.graphics.Canvas)}.
+ */
+public interface Recordable {
+
+	/**
+	 * Adds the draw commands of the object, which must look the same as drawing it directly.
+	 * Called from a worker thread so it must not change the object or its bodies.
+	 * @param list where commands are added
+	 */
+	void record(DisplayList list);
+
+}
@@ -0,0 +1,419 @@
+package com.pablisco.physics;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.World;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Splits the world of a {@link PhysicsEngine} in a grid of cells and freezes the bodies of the
+ * cells where nothing has happened for a while, so big tables only pay for the area in use.
+ * <p/>
+ * A cell is active while it, or one of its neighbours, has an awake body or it's inside the focus
+ * area (see {@link #setFocus(float, float, float, float)}). Sleeping bodies in cells that haven't
+ * been active for {@link #setFreezeDelay(int) a while} are deactivated, which removes them from
+ * the broad phase and destroys their contacts. They are activated again as soon as their cell
+ * becomes active. When there is a focus area, frozen objects are not drawn either as they are
+ * outside of it.
+ * <p/>
+ * Static bodies are never frozen since walls usually span over many cells. Cells should be bigger
+ * than the distance a body can travel between checks so neighbours are thawed in time.
+ * <p/>
+ * Cells are kept in a table keyed by their column and row. Cells without bodies that haven't been
+ * active for the freeze delay are dropped, and created again as active when needed, so memory
+ * grows with the area in use rather than with the whole world.
+ */
+public class RegionManager {
+
+	private static final int DEFAULT_FREEZE_DELAY = 120;
+	private static final int DEFAULT_CHECK_INTERVAL = 10;
+
+	/**
+	 * Cell size in meters
+	 */
+	private final float cellWidth, cellHeight;
+
+	/**
+	 * Steps a cell needs to be inactive before being frozen
+	 */
+	private int freezeDelay = DEFAULT_FREEZE_DELAY;
+
+	/**
+	 * Steps between each check
+	 */
+	private int checkInterval = DEFAULT_CHECK_INTERVAL;
+
+	/**
+	 * Left, top, right and bottom of the focus area in pixels or null if there is none.
+	 * Replaced as a whole so it can be set from any thread.
+	 */
+	private volatile float[] focus;
+
+	/**
+	 * Cells in use and a spare table they are copied into when dropping cells or shifting them.
+	 * Only used in the physics thread.
+	 */
+	private CellTable cells = new CellTable(64);
+	private CellTable spare = new CellTable(64);
+
+	/**
+	 * Bodies deactivated by us
+	 */
+	private Set<Body> frozen = Collections.newSetFromMap(new IdentityHashMap<Body, Boolean>());
+
+	/**
+	 * Frozen bodies still in the world on the last check
+	 */
+	private Set<Body> seen = Collections.newSetFromMap(new IdentityHashMap<Body, Boolean>());
+
+	/**
+	 * Ids of the objects with frozen bodies, see {@link PhysicsEngine#getObjectId(PhysicsObject)}.
+	 * Only used in the physics thread.
+	 */
+	private final BitSet frozenObjects = new BitSet();
+
+	/**
+	 * Size of {@link #frozen} after the last check, to be read from any thread
+	 */
+	private volatile int frozenCount;
+
+	/**
+	 * Cells in the table after the last check, to be read from any thread
+	 */
+	private volatile int cellCount;
+
+	/**
+	 * @param cellWidth width of each cell in pixels
+	 * @param cellHeight height of each cell in pixels
+	 */
+	public RegionManager(float cellWidth, float cellHeight) {
+		this.cellWidth = MeasurementUtil.pixelToMeters(cellWidth);
+		this.cellHeight = MeasurementUtil.pixelToMeters(cellHeight);
+	}
+
+	/**
+	 * @param steps number of steps a cell has to be inactive for before freezing its bodies
+	 * @return self
+	 */
+	public RegionManager setFreezeDelay(int steps) {
+		this.freezeDelay = steps;
+		return this;
+	}
+
+	/**
+	 * @param steps number of steps between checks. Lower values thaw cells sooner but cost more.
+	 * @return self
+	 */
+	public RegionManager setCheckInterval(int steps) {
+		this.checkInterval = Math.max(1, steps);
+		return this;
+	}
+
+	/**
+	 * Defines the area that is always kept active (i.e. the visible area of a scrolling table).
+	 * Safe to call from any thread.
+	 */
+	public RegionManager setFocus(float left, float top, float right, float bottom) {
+		focus = new float[] { left, top, right, bottom };
+		return this;
+	}
+
+	/**
+	 * Removes the focus area so only bodies keep cells active
+	 */
+	public RegionManager clearFocus() {
+		focus = null;
+		return this;
+	}
+
+	/**
+	 * Safe to call from any thread.
+	 * @return number of bodies frozen on the last check
+	 */
+	public int getFrozenCount() {
+		return frozenCount;
+	}
+
+	/**
+	 * Safe to call from any thread.
+	 * @return number of cells kept after the last check
+	 */
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * @return left, top, right and bottom of the focus area in pixels or null if there is none
+	 */
+	float[] getFocus() {
+		return focus;
+	}
+
+	float getCellWidth() {
+		return cellWidth;
+	}
+
+	float getCellHeight() {
+		return cellHeight;
+	}
+
+	/**
+	 * Called by the engine from the physics thread when the origin of the world moves by a whole
+	 * number of cells, so cells keep their state.
+	 * @param columns number of cells moved horizontally
+	 * @param rows number of cells moved vertically
+	 */
+	void shift(int columns, int rows) {
+		final CellTable source = cells;
+		spare.reset(source.size);
+		for (int i = 0; i < source.keys.length; i++) {
+			if (source.used[i]) {
+				long key = source.keys[i];
+				int column = (int) (key >> 32);
+				int row = (int) key;
+				int slot = spare.slot(key(column - columns, row - rows), 0);
+				spare.lastActive[slot] = source.lastActive[i];
+				spare.lastOccupied[slot] = source.lastOccupied[i];
+			}
+		}
+		swapCells();
+	}
+
+	/**
+	 * Used by the engine from the physics thread to skip frozen objects when drawing.
+	 * @param id of the object
+	 * @return true if there is a focus area and the object owns a frozen body
+	 */
+	boolean isHidden(int id) {
+		return focus != null && frozenObjects.get(id);
+	}
+
+	/**
+	 * Called by the engine from the physics thread after each step.
+	 * @param world to check
+	 * @param step number of the current step
+	 * @param origin of the world, to find the focus area in it
+	 * @return true if any body has been frozen or thawed
+	 */
+	boolean update(World world, long step, Origin origin) {
+		if (step % checkInterval != 0) {
+			return false;
+		}
+		markActiveCells(world, step, origin);
+		boolean changed = false;
+		seen.clear();
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() == BodyType.STATIC) {
+				continue;
+			}
+			int cell = cellAt(body.getPosition(), step);
+			cells.lastOccupied[cell] = step;
+			if (frozen.contains(body)) {
+				if (cells.lastActive[cell] == step) {
+					body.setActive(true);
+					changed = true;
+				} else {
+					seen.add(body);
+				}
+			} else if (body.isActive() && !body.isAwake()
+				&& step - cells.lastActive[cell] >= freezeDelay) {
+				body.setActive(false);
+				seen.add(body);
+				changed = true;
+			}
+		}
+		if (changed || seen.size() != frozen.size()) {
+			// anything not seen has been thawed or destroyed
+			Set<Body> previous = frozen;
+			frozen = seen;
+			seen = previous;
+			frozenCount = frozen.size();
+			updateFrozenObjects();
+			changed = true;
+		}
+		dropStaleCells(step);
+		return changed;
+	}
+
+	/**
+	 * Keeps the cells with bodies or that have been active lately, the rest would be frozen if
+	 * they had bodies anyway
+	 */
+	private void dropStaleCells(long step) {
+		final CellTable source = cells;
+		spare.reset(source.size);
+		for (int i = 0; i < source.keys.length; i++) {
+			if (source.used[i] && (source.lastOccupied[i] == step
+				|| step - source.lastActive[i] < freezeDelay)) {
+				int slot = spare.slot(source.keys[i], 0);
+				spare.lastActive[slot] = source.lastActive[i];
+				spare.lastOccupied[slot] = source.lastOccupied[i];
+			}
+		}
+		swapCells();
+		cellCount = cells.size;
+	}
+
+	private void swapCells() {
+		final CellTable previous = cells;
+		cells = spare;
+		spare = previous;
+	}
+
+	private void markActiveCells(World world, long step, Origin origin) {
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() != BodyType.STATIC && body.isActive() && body.isAwake()) {
+				Vec2 position = body.getPosition();
+				int column = column(position.x);
+				int row = row(position.y);
+				for (int x = column - 1; x <= column + 1; x++) {
+					for (int y = row - 1; y <= row + 1; y++) {
+						// the table may grow, so the slot is found before reading the array
+						int cell = cell(x, y, step);
+						cells.lastActive[cell] = step;
+					}
+				}
+			}
+		}
+		float[] area = focus;
+		if (area != null) {
+			// converted on each check as the origin of the world may move
+			int left = column(MeasurementUtil.pixelToWorldX(origin, area[0]));
+			int top = row(MeasurementUtil.pixelToWorldY(origin, area[1]));
+			int right = column(MeasurementUtil.pixelToWorldX(origin, area[2]));
+			int bottom = row(MeasurementUtil.pixelToWorldY(origin, area[3]));
+			for (int x = left; x <= right; x++) {
+				for (int y = top; y <= bottom; y++) {
+					int cell = cell(x, y, step);
+					cells.lastActive[cell] = step;
+				}
+			}
+		}
+	}
+
+	private void updateFrozenObjects() {
+		frozenObjects.clear();
+		for (Body body : frozen) {
+			int id = ObjectIndex.getId(body);
+			if (id >= 0) {
+				frozenObjects.set(id);
+			}
+		}
+	}
+
+	private int column(float x) {
+		return (int) Math.floor(x / cellWidth);
+	}
+
+	private int row(float y) {
+		return (int) Math.floor(y / cellHeight);
+	}
+
+	private int cellAt(Vec2 position, long step) {
+		return cell(column(position.x), row(position.y), step);
+	}
+
+	/**
+	 * Finds a cell, creating it if needed. New cells start as active so bodies entering an
+	 * unknown area are not frozen straight away.
+	 * @return the slot of the cell in {@link #cells}
+	 */
+	private int cell(int column, int row, long step) {
+		return cells.slot(key(column, row), step);
+	}
+
+	private static long key(int column, int row) {
+		return ((long) column << 32) | (row & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Open addressing table of cells keyed by their column and row, without boxing
+	 */
+	private static final class CellTable {
+
+		long[] keys;
+		boolean[] used;
+
+		/**
+		 * Last step in which each cell was active and had a body
+		 */
+		long[] lastActive, lastOccupied;
+
+		int size;
+		private int mask;
+
+		CellTable(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			used = new boolean[capacity];
+			lastActive = new long[capacity];
+			lastOccupied = new long[capacity];
+			mask = capacity - 1;
+			size = 0;
+		}
+
+		/**
+		 * Empties the table, making room for the given number of cells
+		 */
+		void reset(int cells) {
+			if (cells * 2 > keys.length) {
+				allocate(Integer.highestOneBit(cells * 2) << 1);
+			} else {
+				Arrays.fill(used, false);
+				size = 0;
+			}
+		}
+
+		/**
+		 * Finds the slot of a cell, adding it if needed
+		 * @param step when a new cell was last active
+		 */
+		int slot(long key, long step) {
+			int slot = mix(key) & mask;
+			while (used[slot]) {
+				if (keys[slot] == key) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+				return slot(key, step);
+			}
+			used[slot] = true;
+			keys[slot] = key;
+			lastActive[slot] = step;
+			lastOccupied[slot] = Long.MIN_VALUE;
+			size++;
+			return slot;
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys, oldActive = lastActive, oldOccupied = lastOccupied;
+			final boolean[] oldUsed = used;
+			allocate(keys.length * 2);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					int slot = slot(oldKeys[i], oldActive[i]);
+					lastOccupied[slot] = oldOccupied[i];
+				}
+			}
+		}
+
+		private static int mix(long key) {
+			long hash = key * 0x9E3779B97F4A7C15L;
+			return (int) (hash ^ (hash >>> 32));
+		}
+
+	}
+
+}
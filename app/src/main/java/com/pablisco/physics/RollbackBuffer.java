@@ -0,0 +1,275 @@
+package com.pablisco.physics;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.World;
+
+/**
+ * Keeps the state of the world for the last few steps so the engine can go back to one of them
+ * and simulate again, i.e. when an input for a past step arrives late.
+ * <p/>
+ * States are stored in a flat float array (position, angle, velocities and sleep time of each
+ * non static body) instead of copies of the bodies. Contact caches are not part of the state so
+ * a resimulation may differ slightly from the original run.
+ * <p/>
+ * A state can only be restored while the same bodies are in the world: creating or removing
+ * objects invalidates older states.
+ * <p/>
+ * Steps are simulated again within a {@link #setBudget(float) budget} per frame. When they don't
+ * fit in one frame the rest are simulated on the next ones, while the present is held back, so
+ * frames are never late but the world falls behind by those frames. RollbackBenchmarkTest, in
+ * the instrumentation tests, measures the costs involved.
+ *
+ * @see PhysicsEngine#setRollbackBuffer(RollbackBuffer)
+ * @see PhysicsEngine#rollback(long, PhysicsEngine.StepReplayer)
+ */
+public class RollbackBuffer {
+
+	/**
+	 * x, y, angle, linear velocity x, linear velocity y, angular velocity, sleep time, awake
+	 */
+	private static final int STRIDE = 8;
+
+	private final int capacity;
+
+	/**
+	 * Step stored in each slot or -1 if empty
+	 */
+	private final long[] steps;
+
+	/**
+	 * Body order of each slot. Slots captured with the same bodies share the same array.
+	 */
+	private final Body[][] orders;
+
+	private final int[] versions;
+
+	private float[] states = new float[0];
+
+	/**
+	 * Bodies in each slot's state
+	 */
+	private int bodiesPerSlot;
+
+	private Body[] order;
+	private int orderVersion = -1;
+
+	private final Vec2 vector = new Vec2();
+
+	/**
+	 * Fraction of each frame used to simulate steps again
+	 */
+	private volatile float budget = 0.5f;
+
+	/**
+	 * Next step to simulate again or -1 if the world is at the present. Only used in the physics
+	 * thread.
+	 */
+	private long replayStep = -1;
+
+	/**
+	 * Duration of the last step simulated again, to know if another one fits in the budget
+	 */
+	private long lastReplayNanos;
+
+	/**
+	 * @param capacity number of steps kept
+	 */
+	public RollbackBuffer(int capacity) {
+		this.capacity = capacity;
+		steps = new long[capacity];
+		orders = new Body[capacity][];
+		versions = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			steps[i] = -1;
+		}
+	}
+
+	/**
+	 * @return number of steps that can be rolled back
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param fraction of each frame that can be spent simulating past steps again, the rest is
+	 *                 left for the step of the present and drawing. At least one step is
+	 *                 simulated on each frame.
+	 * @return self
+	 */
+	public RollbackBuffer setBudget(float fraction) {
+		if (fraction <= 0 || fraction > 1) {
+			throw new IllegalArgumentException("Invalid budget: " + fraction);
+		}
+		this.budget = fraction;
+		return this;
+	}
+
+	/**
+	 * @return true if the world is in the past, simulating steps again
+	 */
+	boolean isReplaying() {
+		return replayStep >= 0;
+	}
+
+	/**
+	 * Puts the world back to the state before the given step, unless the world is already
+	 * simulating again from an earlier step.
+	 * @return false if the state is not available anymore
+	 */
+	boolean rewind(World world, long step, int version) {
+		if (replayStep >= 0 && step >= replayStep) {
+			// it'll be simulated again anyway
+			return true;
+		}
+		if (!restore(world, step, version)) {
+			return false;
+		}
+		replayStep = step;
+		return true;
+	}
+
+	/**
+	 * Simulates again the steps from the one rewound to the present, for as long as the budget
+	 * of the frame allows. A step is only started if it's expected to fit, based on the last one,
+	 * but at least one is simulated on each call. States are captured again as they are rewritten.
+	 * @param present number of the step the world is meant to be at
+	 * @param frameNanos duration of a frame
+	 * @return true when the world is back at the present
+	 */
+	boolean replay(World world, long present, int version, PhysicsEngine.StepReplayer replayer,
+	               float frameTime, int velocityIterations, int positionIterations,
+	               long frameNanos) {
+		final long budgetNanos = (long) (frameNanos * budget);
+		final long start = System.nanoTime();
+		while (replayStep >= 0 && replayStep < present) {
+			capture(world, replayStep, version);
+			replayer.onReplay(world, replayStep);
+			final long stepStart = System.nanoTime();
+			world.step(frameTime, velocityIterations, positionIterations);
+			final long now = System.nanoTime();
+			lastReplayNanos = now - stepStart;
+			replayStep++;
+			if (now - start + lastReplayNanos > budgetNanos) {
+				break;
+			}
+		}
+		if (replayStep >= present) {
+			replayStep = -1;
+		}
+		return replayStep < 0;
+	}
+
+	/**
+	 * Stores the state of the world before a step.
+	 * @param world to capture
+	 * @param step number of the step about to happen
+	 * @param version changes every time bodies are created or destroyed
+	 */
+	void capture(World world, long step, int version) {
+		if (version != orderVersion || order == null) {
+			order = collectBodies(world);
+			orderVersion = version;
+		}
+		ensureCapacity(order.length);
+		int slot = (int) (step % capacity);
+		int offset = slot * bodiesPerSlot * STRIDE;
+		for (Body body : order) {
+			Vec2 position = body.getPosition();
+			Vec2 velocity = body.getLinearVelocity();
+			states[offset] = position.x;
+			states[offset + 1] = position.y;
+			states[offset + 2] = body.getAngle();
+			states[offset + 3] = velocity.x;
+			states[offset + 4] = velocity.y;
+			states[offset + 5] = body.getAngularVelocity();
+			states[offset + 6] = body.m_sleepTime;
+			states[offset + 7] = body.isAwake() ? 1 : 0;
+			offset += STRIDE;
+		}
+		steps[slot] = step;
+		orders[slot] = order;
+		versions[slot] = version;
+	}
+
+	/**
+	 * @return true if the state before the given step can be restored
+	 */
+	boolean contains(long step, int version) {
+		int slot = (int) (step % capacity);
+		return step >= 0 && steps[slot] == step && versions[slot] == version;
+	}
+
+	/**
+	 * Puts the world back to the state before the given step.
+	 * @return false if the state is not available anymore
+	 */
+	boolean restore(World world, long step, int version) {
+		if (!contains(step, version)) {
+			return false;
+		}
+		int slot = (int) (step % capacity);
+		int offset = slot * bodiesPerSlot * STRIDE;
+		for (Body body : orders[slot]) {
+			float x = states[offset];
+			float y = states[offset + 1];
+			float angle = states[offset + 2];
+			Vec2 position = body.getPosition();
+			// only touch the broad phase for bodies that have moved
+			if (position.x != x || position.y != y || body.getAngle() != angle) {
+				vector.set(x, y);
+				body.setTransform(vector, angle);
+			}
+			boolean awake = states[offset + 7] != 0;
+			body.setAwake(awake);
+			if (awake) {
+				vector.set(states[offset + 3], states[offset + 4]);
+				body.setLinearVelocity(vector);
+				body.setAngularVelocity(states[offset + 5]);
+			}
+			body.m_sleepTime = states[offset + 6];
+			offset += STRIDE;
+		}
+		// later states belong to the future we are about to rewrite
+		for (int i = 0; i < capacity; i++) {
+			if (steps[i] > step) {
+				steps[i] = -1;
+			}
+		}
+		return true;
+	}
+
+	private static Body[] collectBodies(World world) {
+		int count = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() != BodyType.STATIC) {
+				count++;
+			}
+		}
+		Body[] result = new Body[count];
+		int i = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() != BodyType.STATIC) {
+				result[i++] = body;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Makes room for more bodies per slot. Existing states are dropped as the layout changes.
+	 */
+	private void ensureCapacity(int bodies) {
+		if (bodies <= bodiesPerSlot) {
+			return;
+		}
+		bodiesPerSlot = Math.max(bodies, bodiesPerSlot * 2);
+		states = new float[capacity * bodiesPerSlot * STRIDE];
+		for (int i = 0; i < capacity; i++) {
+			steps[i] = -1;
+		}
+	}
+
+}
@@ -0,0 +1,17 @@
+package com.pablisco.physics;
+
+/**
+ * Notified when every body of the world has stopped moving
+ *
+ * @see SleepPolicy#setSettleListener(SettleListener)
+ */
+public interface SettleListener {
+
+	/**
+	 * Called from the physics thread, so it should be quick (i.e. post the work to the main
+	 * thread).
+	 * @param step number of steps done when the world settled
+	 */
+	void onSettled(long step);
+
+}
@@ -0,0 +1,151 @@
+package com.pablisco.physics;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.World;
+
+/**
+ * Decides when the world of a {@link PhysicsEngine} has settled, that is when no body is moving
+ * any more (i.e. all the balls have stopped after a shot).
+ * <p/>
+ * JBox2D puts bodies to sleep on its own with fixed, very strict thresholds. With this policy
+ * bodies below looser thresholds for a while can be frozen (put to sleep) straight away, which
+ * stops the slow crawl at the end of each shot. Once every body is asleep the
+ * {@link SettleListener} is notified and, if enabled, the engine stops stepping until there is
+ * some input: an impulse, force or teleport, an object added or removed, a posted task, a change
+ * to the {@link CollisionMatrix} or a call to {@link PhysicsEngine#wake()}. Queries and other
+ * tasks posted with {@link PhysicsEngine#postRead(PhysicsEngine.WorldTask)} don't count.
+ * <p/>
+ * Pausing skips steps so it must not be used with a {@link StepGate} doing lockstep.
+ *
+ * @see PhysicsEngine#setSleepPolicy(SleepPolicy)
+ */
+public class SleepPolicy {
+
+	private float linearThreshold = 0.05f;
+	private float angularThreshold = (float) Math.toRadians(5);
+	private float timeToFreeze = 0.25f;
+	private boolean freeze;
+	private boolean pauseWhenSettled;
+	private SettleListener settleListener;
+
+	/* state, only used in the physics thread */
+
+	/**
+	 * Seconds all the awake bodies have been below the thresholds
+	 */
+	private float stillTime;
+
+	private volatile boolean settled;
+
+	/**
+	 * A body is still when it moves slower than both thresholds
+	 * @param linear speed in meters per second
+	 * @param angular speed in radians per second
+	 * @return self
+	 */
+	public SleepPolicy setThresholds(float linear, float angular) {
+		if (linear < 0 || angular < 0) {
+			throw new IllegalArgumentException("Thresholds can't be negative");
+		}
+		this.linearThreshold = linear;
+		this.angularThreshold = angular;
+		return this;
+	}
+
+	/**
+	 * Enables freezing, all the awake bodies are put to sleep once they have all been still for
+	 * some time
+	 * @param timeToFreeze seconds the bodies have to be still
+	 * @return self
+	 */
+	public SleepPolicy setFreeze(float timeToFreeze) {
+		this.freeze = true;
+		this.timeToFreeze = timeToFreeze;
+		return this;
+	}
+
+	/**
+	 * @param pause true to stop stepping the world while it's settled. Particle systems keep
+	 *              updating so they still fall and expire
+	 * @return self
+	 */
+	public SleepPolicy setPauseWhenSettled(boolean pause) {
+		this.pauseWhenSettled = pause;
+		return this;
+	}
+
+	/**
+	 * @param listener notified each time the world settles or null
+	 * @return self
+	 */
+	public SleepPolicy setSettleListener(SettleListener listener) {
+		this.settleListener = listener;
+		return this;
+	}
+
+	/**
+	 * @return true if every body was asleep after the last step
+	 */
+	public boolean isSettled() {
+		return settled;
+	}
+
+	/**
+	 * @return true if the engine can skip steps until there is some input
+	 */
+	boolean isPaused() {
+		return pauseWhenSettled && settled;
+	}
+
+	/**
+	 * Checks the bodies after a step, freezing them if they have been still long enough
+	 * @param step number of steps done so far
+	 */
+	void update(World world, float frameTime, long step) {
+		final float linearSquared = linearThreshold * linearThreshold;
+		int awake = 0;
+		boolean still = true;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (!isMoving(body)) {
+				continue;
+			}
+			awake++;
+			final Vec2 velocity = body.getLinearVelocity();
+			if (velocity.lengthSquared() > linearSquared
+				|| Math.abs(body.getAngularVelocity()) > angularThreshold) {
+				still = false;
+			}
+		}
+		if (awake > 0) {
+			stillTime = still ? stillTime + frameTime : 0;
+			if (!freeze || stillTime < timeToFreeze) {
+				settled = false;
+				return;
+			}
+			for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+				if (isMoving(body)) {
+					// also clears its velocity
+					body.setAwake(false);
+				}
+			}
+		}
+		stillTime = 0;
+		if (!settled) {
+			settled = true;
+			final SettleListener listener = settleListener;
+			if (listener != null) {
+				listener.onSettled(step);
+			}
+		}
+	}
+
+	/**
+	 * Bodies frozen by a {@link RegionManager} are inactive and don't count
+	 */
+	private static boolean isMoving(Body body) {
+		return body.getType() != BodyType.STATIC && body.isAwake() && body.isActive();
+	}
+
+}
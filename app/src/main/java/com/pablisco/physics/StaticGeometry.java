@@ -0,0 +1,238 @@
+package com.pablisco.physics;
+
+import org.jbox2d.collision.shapes.ChainShape;
+import org.jbox2d.common.Settings;
+import org.jbox2d.common.Vec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges static, axis aligned boxes into the smallest set of closed chains (loops) that outline
+ * them. Boxes that touch or overlap become a single loop with one vertex per corner, so walls
+ * made of many pieces need one fixture instead of one per piece, there are no overlapping
+ * fixtures and, as loops know the edges on either side of each edge (ghost vertices), objects
+ * sliding along them don't catch on the seams between pieces.
+ * <p/>
+ * It's meant to be used once when loading a table, see
+ * {@link com.pablisco.physics.tables.CompiledTable}. The loops are hollow so it's only suitable
+ * for geometry that objects can't get inside of.
+ * <p/>
+ * All values are in meters, relative to the body the loops are attached to.
+ */
+public class StaticGeometry {
+
+	/**
+	 * Coordinates closer than this are treated as the same one, so boxes placed next to each
+	 * other with some rounding error are still merged
+	 */
+	private static final float EPSILON = Settings.linearSlop;
+
+	/**
+	 * Directions of the outline edges, counterclockwise so the boxes are on the left
+	 */
+	private static final int RIGHT = 0, UP = 1, LEFT = 2, DOWN = 3;
+
+	private float[] boxes = new float[16 * 4];
+	private int boxCount;
+
+	/**
+	 * Adds a solid box, it's ignored if it's thinner than the tolerance
+	 * @return self
+	 */
+	public StaticGeometry addBox(float left, float top, float right, float bottom) {
+		if (right - left < EPSILON || bottom - top < EPSILON) {
+			return this;
+		}
+		if ((boxCount + 1) * 4 > boxes.length) {
+			boxes = Arrays.copyOf(boxes, boxes.length * 2);
+		}
+		int offset = boxCount * 4;
+		boxes[offset] = left;
+		boxes[offset + 1] = top;
+		boxes[offset + 2] = right;
+		boxes[offset + 3] = bottom;
+		boxCount++;
+		return this;
+	}
+
+	/**
+	 * @return number of boxes added so far
+	 */
+	public int getBoxCount() {
+		return boxCount;
+	}
+
+	/**
+	 * Works out the outline of all the boxes added so far. Each outer edge becomes part of a
+	 * loop and edges shared by two boxes disappear.
+	 * @return one loop per outline, including the outlines of holes
+	 */
+	public List<ChainShape> build() {
+		final List<ChainShape> result = new ArrayList<>();
+		if (boxCount == 0) {
+			return result;
+		}
+		// every distinct edge coordinate splits the space in a grid of cells
+		final float[] xs = coordinates(0);
+		final float[] ys = coordinates(1);
+		final int columns = xs.length - 1;
+		final int rows = ys.length - 1;
+		final boolean[] filled = new boolean[columns * rows];
+		for (int box = 0; box < boxCount; box++) {
+			int offset = box * 4;
+			int left = find(xs, boxes[offset]);
+			int top = find(ys, boxes[offset + 1]);
+			int right = find(xs, boxes[offset + 2]);
+			int bottom = find(ys, boxes[offset + 3]);
+			for (int row = top; row < bottom; row++) {
+				Arrays.fill(filled, row * columns + left, row * columns + right, true);
+			}
+		}
+		// outline edges of each vertex of the grid, as bits of the directions they go to
+		final int width = columns + 1;
+		final byte[] edges = new byte[width * (rows + 1)];
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				if (!filled[row * columns + column]) {
+					continue;
+				}
+				int vertex = row * width + column;
+				if (row == 0 || !filled[(row - 1) * columns + column]) {
+					edges[vertex] |= 1 << RIGHT;
+				}
+				if (column == columns - 1 || !filled[row * columns + column + 1]) {
+					edges[vertex + 1] |= 1 << UP;
+				}
+				if (row == rows - 1 || !filled[(row + 1) * columns + column]) {
+					edges[vertex + width + 1] |= 1 << LEFT;
+				}
+				if (column == 0 || !filled[row * columns + column - 1]) {
+					edges[vertex + width] |= 1 << DOWN;
+				}
+			}
+		}
+		final List<Vec2> corners = new ArrayList<>();
+		for (int start = 0; start < edges.length; start++) {
+			while (edges[start] != 0) {
+				traceLoop(edges, start, width, xs, ys, corners);
+				ChainShape loop = new ChainShape();
+				loop.createLoop(corners.toArray(new Vec2[corners.size()]), corners.size());
+				result.add(loop);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Follows the edges from a vertex until it gets back to it, removing them as it goes
+	 * @param corners filled with the vertices where the outline changes direction
+	 */
+	private static void traceLoop(byte[] edges, int start, int width, float[] xs, float[] ys,
+	                              List<Vec2> corners) {
+		corners.clear();
+		int vertex = start;
+		int direction = Integer.numberOfTrailingZeros(edges[start]);
+		int first = direction;
+		do {
+			edges[vertex] &= ~(1 << direction);
+			vertex += step(direction, width);
+			if (vertex == start) {
+				break;
+			}
+			final int next = nextDirection(edges[vertex], direction);
+			if (next != direction) {
+				corners.add(new Vec2(xs[vertex % width], ys[vertex / width]));
+			}
+			direction = next;
+		} while (true);
+		if (direction != first) {
+			corners.add(new Vec2(xs[start % width], ys[start / width]));
+		}
+	}
+
+	/**
+	 * Boxes touching only by a corner share a vertex with two ways out. Turning left keeps
+	 * each box in its own loop.
+	 */
+	private static int nextDirection(byte edges, int incoming) {
+		final int left = (incoming + 1) % 4;
+		if ((edges & (1 << left)) != 0) {
+			return left;
+		}
+		if ((edges & (1 << incoming)) != 0) {
+			return incoming;
+		}
+		final int right = (incoming + 3) % 4;
+		if ((edges & (1 << right)) != 0) {
+			return right;
+		}
+		throw new IllegalStateException("Open outline");
+	}
+
+	private static int step(int direction, int width) {
+		switch (direction) {
+			case RIGHT: return 1;
+			case UP: return width;
+			case LEFT: return -1;
+			default: return -width;
+		}
+	}
+
+	/**
+	 * @param axis 0 for horizontal and 1 for vertical
+	 * @return the distinct coordinates of the edges of the boxes on an axis, sorted
+	 */
+	private float[] coordinates(int axis) {
+		float[] values = new float[boxCount * 2];
+		for (int box = 0; box < boxCount; box++) {
+			values[box * 2] = boxes[box * 4 + axis];
+			values[box * 2 + 1] = boxes[box * 4 + axis + 2];
+		}
+		Arrays.sort(values);
+		int size = 1;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] - values[size - 1] >= EPSILON) {
+				values[size++] = values[i];
+			}
+		}
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * @return index of the coordinate closest to the value
+	 */
+	private static int find(float[] coordinates, float value) {
+		int index = Arrays.binarySearch(coordinates, value);
+		if (index >= 0) {
+			return index;
+		}
+		int insertion = -index - 1;
+		if (insertion == 0) {
+			return 0;
+		}
+		if (insertion == coordinates.length) {
+			return coordinates.length - 1;
+		}
+		return value - coordinates[insertion - 1] < coordinates[insertion] - value
+			? insertion - 1 : insertion;
+	}
+
+	/**
+	 * Creates the outline of a single box as a loop, used for hollow boxes
+	 * @return a loop with the four corners of the box
+	 */
+	public static ChainShape createLoop(float left, float top, float right, float bottom) {
+		ChainShape shape = new ChainShape();
+		Vec2[] vertices = Vecs.vec2Array(
+			left, top,
+			right, top,
+			right, bottom,
+			left, bottom
+		);
+		shape.createLoop(vertices, vertices.length);
+		return shape;
+	}
+
+}
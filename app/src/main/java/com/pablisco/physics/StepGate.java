@@ -0,0 +1,28 @@
+package com.pablisco.physics;
+
+import org.jbox2d.dynamics.World;
+
+/**
+ * Hook used by {@link PhysicsEngine} around each step of the world. It can hold steps back, i.e.
+ * to wait for input from other players, and inspect the world after they happen.
+ * <p/>
+ * Both methods are called from the physics thread.
+ *
+ * @see PhysicsEngine#setStepGate(StepGate)
+ */
+public interface StepGate {
+
+	/**
+	 * Called before stepping the world
+	 * @param world about to be stepped
+	 * @return false to skip this step
+	 */
+	boolean beforeStep(World world);
+
+	/**
+	 * Called after every step that wasn't skipped
+	 * @param world that was stepped
+	 */
+	void afterStep(World world);
+
+}
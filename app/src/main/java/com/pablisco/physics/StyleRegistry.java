@@ -0,0 +1,173 @@
+package com.pablisco.physics;
+
+import android.graphics.Paint;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the styles used to paint objects. Each different combination of color, stroke
+ * width and {@link Paint.Style} is interned once and given an id, so objects only need to keep
+ * that id and every object with the same look shares the same {@link Paint}.
+ * <p/>
+ * Ids are assigned in order of registration and never change, which allows renderers to sort by
+ * id to group draws that use the same paint.
+ * <p/>
+ * Paints returned by {@link #getPaint(int)} are shared so they must not be modified, objects
+ * that need to change their paint get a copy of their own (see
+ * {@link BasePhysicsObject#getPaint()}).
+ * <p/>
+ * Styles are never removed, as their ids must not change, so there is one entry per look used
+ * since the process started. Objects changing color continuously (i.e. fading) should change a
+ * paint of their own instead of registering a style per frame.
+ */
+public final class StyleRegistry {
+
+	/**
+	 * Used by objects that don't have a single style
+	 */
+	public static final int NO_STYLE = -1;
+
+	/**
+	 * Sorts objects by their style id, keeping the original order of objects with the same style
+	 * when used with a stable sort (i.e. {@link Arrays#sort(Object[], Comparator)}).
+	 */
+	public static final Comparator<PhysicsObject> BY_STYLE = new Comparator<PhysicsObject>() {
+		@Override
+		public int compare(PhysicsObject lhs, PhysicsObject rhs) {
+			int left = lhs.getStyleId();
+			int right = rhs.getStyleId();
+			return left < right ? -1 : (left == right ? 0 : 1);
+		}
+	};
+
+	private static final Map<Key, Integer> ids = new HashMap<>();
+
+	private static int[] colors = new int[0];
+	private static float[] strokeWidths = new float[0];
+	private static Paint.Style[] styles = new Paint.Style[0];
+
+	/**
+	 * Replaced as a whole on every registration so it can be read without locking
+	 */
+	private static volatile Paint[] paints = new Paint[0];
+
+	private StyleRegistry() {
+		// no instances
+	}
+
+	/**
+	 * Looks up the id for the given style, registering it if it's the first time it's used.
+	 * @param color of the paint
+	 * @param strokeWidth of the paint
+	 * @param style of the paint
+	 * @return the id of the style
+	 */
+	public static synchronized int intern(int color, float strokeWidth, Paint.Style style) {
+		Key key = new Key(color, strokeWidth, style);
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = paints.length;
+			Paint paint = new Paint();
+			paint.setColor(color);
+			paint.setStrokeWidth(strokeWidth);
+			paint.setStyle(style);
+			colors = append(colors, color);
+			strokeWidths = append(strokeWidths, strokeWidth);
+			styles = append(styles, style);
+			paints = append(paints, paint);
+			ids.put(key, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @return the id of a style like the given one but with a different color
+	 */
+	public static synchronized int withColor(int id, int color) {
+		return intern(color, strokeWidths[id], styles[id]);
+	}
+
+	/**
+	 * @return the id of a style like the given one but with a different stroke width
+	 */
+	public static synchronized int withStrokeWidth(int id, float strokeWidth) {
+		return intern(colors[id], strokeWidth, styles[id]);
+	}
+
+	/**
+	 * @return the id of a style like the given one but with a different {@link Paint.Style}
+	 */
+	public static synchronized int withStyle(int id, Paint.Style style) {
+		return intern(colors[id], strokeWidths[id], style);
+	}
+
+	/**
+	 * @param id of a registered style
+	 * @return the shared paint for the style
+	 */
+	public static Paint getPaint(int id) {
+		return paints[id];
+	}
+
+	/**
+	 * @return number of styles registered
+	 */
+	public static int size() {
+		return paints.length;
+	}
+
+	private static int[] append(int[] source, int value) {
+		int[] result = Arrays.copyOf(source, source.length + 1);
+		result[source.length] = value;
+		return result;
+	}
+
+	private static float[] append(float[] source, float value) {
+		float[] result = Arrays.copyOf(source, source.length + 1);
+		result[source.length] = value;
+		return result;
+	}
+
+	private static <T> T[] append(T[] source, T value) {
+		T[] result = Arrays.copyOf(source, source.length + 1);
+		result[source.length] = value;
+		return result;
+	}
+
+	private static class Key {
+
+		private final int color;
+		private final float strokeWidth;
+		private final Paint.Style style;
+
+		Key(int color, float strokeWidth, Paint.Style style) {
+			this.color = color;
+			this.strokeWidth = strokeWidth;
+			this.style = style;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return color == other.color
+				&& Float.floatToIntBits(strokeWidth) == Float.floatToIntBits(other.strokeWidth)
+				&& style == other.style;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = color;
+			result = 31 * result + Float.floatToIntBits(strokeWidth);
+			result = 31 * result + style.hashCode();
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,565 @@
+package com.pablisco.physics;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyDef;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.Filter;
+import org.jbox2d.dynamics.Fixture;
+import org.jbox2d.dynamics.FixtureDef;
+import org.jbox2d.dynamics.World;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Predicts the path a body will follow after an impulse (i.e. to help aiming a shot) without
+ * stalling the {@link PhysicsEngine}.
+ * <p/>
+ * The state of the bodies is copied in the physics thread, which is cheap, and the simulation
+ * happens in a background thread on a shadow world, so the worker never touches bodies of the
+ * engine that may be destroyed or changed meanwhile. Fixtures are only copied the first time a
+ * body is seen and static ones again when the static bodies of the engine change, afterwards
+ * snapshots only have transforms, velocities and filters. The shadow world shares those copies:
+ * its static geometry is only rebuilt when the static bodies change and dynamic bodies are
+ * created the first time they are seen.
+ * <p/>
+ * The last result is cached and reused while the request and the state of the bodies don't
+ * change. When requests arrive faster than they can be simulated only the latest one is
+ * simulated.
+ */
+public class TrajectoryPredictor {
+
+	/**
+	 * x, y, angle, linear velocity x, linear velocity y, angular velocity, awake
+	 */
+	private static final int STRIDE = 7;
+
+	private final PhysicsEngine engine;
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Prediction Thread");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final AtomicReference<Request> latest = new AtomicReference<>();
+
+	private volatile Result cached;
+
+	/* only used in the physics thread */
+
+	private final Map<Body, BodyCopy> copies = new IdentityHashMap<>();
+	private long copiedStaticKey;
+	private float[] copiedStaticPositions;
+	private FixtureDef[][] copiedStatics;
+	private long snapshots;
+
+	/* only used in the worker thread */
+
+	private World shadow;
+	private long staticKey;
+	private final List<Body> shadowStatics = new ArrayList<>();
+	private final Map<Body, Body> shadowBodies = new IdentityHashMap<>();
+	private final Map<Body, Fixture[]> shadowFixtures = new IdentityHashMap<>();
+	private final Vec2 vector = new Vec2();
+	private final Filter filter = new Filter();
+
+	/**
+	 * @param engine whose world is used for predictions
+	 */
+	public TrajectoryPredictor(PhysicsEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Requests the path of a body after applying an impulse to it. Safe to call from any thread.
+	 * @param body a body created by an object of the engine
+	 * @param impulseX horizontal impulse in world units (N-seconds)
+	 * @param impulseY vertical impulse in world units (N-seconds)
+	 * @param steps how many steps to predict
+	 * @param callback notified with the result from a background thread. It's not notified if a
+	 *                 newer request arrives before this one is done.
+	 */
+	public void predict(Body body, float impulseX, float impulseY, int steps, Callback callback) {
+		final Request request = new Request(body, impulseX, impulseY, steps, callback);
+		latest.set(request);
+		engine.postRead(new PhysicsEngine.WorldTask() {
+			@Override
+			public void run(World world) {
+				if (latest.get() == request) {
+					onSnapshot(request, snapshot(world, engine.getOrigin()));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the background thread. The predictor can't be used afterwards.
+	 */
+	public void release() {
+		worker.shutdownNow();
+	}
+
+	/**
+	 * Called from the physics thread with a copy of the state
+	 */
+	private void onSnapshot(final Request request, final Snapshot snapshot) {
+		final Result result = cached;
+		if (result != null && result.matches(request, snapshot)) {
+			request.callback.onPrediction(result.trajectory);
+			return;
+		}
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (latest.get() != request) {
+					// there is a newer request
+					return;
+				}
+				Trajectory trajectory = simulate(request, snapshot);
+				cached = new Result(request, snapshot, trajectory);
+				request.callback.onPrediction(trajectory);
+			}
+		});
+	}
+
+	private Trajectory simulate(Request request, Snapshot snapshot) {
+		if (shadow == null) {
+			shadow = new World(snapshot.gravity);
+			shadow.setAllowSleep(true);
+		}
+		shadow.setGravity(snapshot.gravity);
+		if (shadow.getBodyCount() == 0 || staticKey != snapshot.staticKey) {
+			rebuildStatics(snapshot);
+		}
+		syncBodies(snapshot);
+		Body target = shadowBodies.get(request.body);
+		float[] points = new float[request.steps * 2];
+		if (target != null) {
+			vector.set(request.impulseX, request.impulseY);
+			target.applyLinearImpulse(vector, target.getWorldCenter());
+			float timeStep = engine.getStepTime();
+			int velocityIterations = engine.getVelocityIterations();
+			int positionIterations = engine.getPositionIterations();
+			for (int i = 0; i < request.steps; i++) {
+				shadow.step(timeStep, velocityIterations, positionIterations);
+				Vec2 position = target.getPosition();
+				points[i * 2] = MeasurementUtil.worldToPixelX(snapshot.origin, position.x);
+				points[i * 2 + 1] = MeasurementUtil.worldToPixelY(snapshot.origin, position.y);
+			}
+		}
+		return new Trajectory(points);
+	}
+
+	private void rebuildStatics(Snapshot snapshot) {
+		for (Body body : shadowStatics) {
+			shadow.destroyBody(body);
+		}
+		shadowStatics.clear();
+		for (int i = 0; i < snapshot.staticFixtures.length; i++) {
+			BodyDef definition = new BodyDef();
+			definition.type = BodyType.STATIC;
+			float[] positions = snapshot.staticPositions;
+			definition.position.set(positions[i * 3], positions[i * 3 + 1]);
+			definition.angle = positions[i * 3 + 2];
+			Body copy = shadow.createBody(definition);
+			createFixtures(copy, snapshot.staticFixtures[i]);
+			shadowStatics.add(copy);
+		}
+		staticKey = snapshot.staticKey;
+	}
+
+	private void syncBodies(Snapshot snapshot) {
+		Map<Body, Boolean> seen = new IdentityHashMap<>();
+		float[] states = snapshot.states;
+		for (int i = 0, offset = 0; i < snapshot.bodies.length; i++, offset += STRIDE) {
+			Body source = snapshot.bodies[i];
+			seen.put(source, Boolean.TRUE);
+			Body copy = shadowBodies.get(source);
+			if (copy == null) {
+				BodyCopy definitions = snapshot.copies[i];
+				copy = shadow.createBody(definitions.definition);
+				shadowBodies.put(source, copy);
+				shadowFixtures.put(source, createFixtures(copy, definitions.fixtures));
+			}
+			updateFilters(shadowFixtures.get(source), snapshot.filters[i]);
+			vector.set(states[offset], states[offset + 1]);
+			copy.setTransform(vector, states[offset + 2]);
+			boolean awake = states[offset + 6] != 0;
+			copy.setAwake(awake);
+			vector.set(states[offset + 3], states[offset + 4]);
+			copy.setLinearVelocity(vector);
+			copy.setAngularVelocity(states[offset + 5]);
+		}
+		// bodies that are gone from the engine
+		Iterator<Map.Entry<Body, Body>> entries = shadowBodies.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Body, Body> entry = entries.next();
+			if (!seen.containsKey(entry.getKey())) {
+				shadow.destroyBody(entry.getValue());
+				shadowFixtures.remove(entry.getKey());
+				entries.remove();
+			}
+		}
+	}
+
+	private static Fixture[] createFixtures(Body target, FixtureDef[] definitions) {
+		Fixture[] result = new Fixture[definitions.length];
+		for (int i = 0; i < definitions.length; i++) {
+			result[i] = target.createFixture(definitions[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Filters change when the collision matrix of the engine does, the fixtures themselves don't
+	 * change once a body is created
+	 * @param filters category, mask and group of each fixture
+	 */
+	private void updateFilters(Fixture[] fixtures, int[] filters) {
+		for (int i = 0; i < fixtures.length && i * 3 < filters.length; i++) {
+			Filter current = fixtures[i].getFilterData();
+			int offset = i * 3;
+			if (current.categoryBits != filters[offset] || current.maskBits != filters[offset + 1]
+				|| current.groupIndex != filters[offset + 2]) {
+				filter.categoryBits = filters[offset];
+				filter.maskBits = filters[offset + 1];
+				filter.groupIndex = filters[offset + 2];
+				fixtures[i].setFilterData(filter);
+			}
+		}
+	}
+
+	/**
+	 * Copies the state of the world. Fixtures are only copied for bodies that haven't been seen
+	 * before, and for static bodies when they change. Must be called from the physics thread.
+	 */
+	private Snapshot snapshot(World world, Origin origin) {
+		final Snapshot snapshot = new Snapshot();
+		snapshot.gravity = world.getGravity().clone();
+		snapshot.origin = origin;
+		final long current = ++snapshots;
+		int staticCount = 0;
+		int count = 0;
+		long key = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() == BodyType.STATIC) {
+				Vec2 position = body.getPosition();
+				key = key * 31 + System.identityHashCode(body);
+				// statics move when the origin of the world moves
+				key = key * 31 + Float.floatToRawIntBits(position.x);
+				key = key * 31 + Float.floatToRawIntBits(position.y);
+				key = key * 31 + Float.floatToRawIntBits(body.getAngle());
+				key = key * 31 + hashFilters(body);
+				staticCount++;
+			} else if (body.isActive()) {
+				count++;
+			}
+		}
+		key = key * 31 + staticCount;
+		if (copiedStatics == null || key != copiedStaticKey) {
+			copyStatics(world, staticCount);
+			copiedStaticKey = key;
+		}
+		snapshot.staticKey = key;
+		snapshot.staticPositions = copiedStaticPositions;
+		snapshot.staticFixtures = copiedStatics;
+		final Body[] bodies = new Body[count];
+		final BodyCopy[] bodyCopies = new BodyCopy[count];
+		final int[][] filters = new int[count][];
+		final float[] states = new float[count * STRIDE];
+		long filterHash = 0;
+		int d = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() == BodyType.STATIC || !body.isActive()) {
+				continue;
+			}
+			BodyCopy copy = copies.get(body);
+			if (copy == null) {
+				copy = new BodyCopy(copyDefinition(body), copyFixtures(body));
+				copies.put(body, copy);
+			}
+			copy.lastSeen = current;
+			bodies[d] = body;
+			bodyCopies[d] = copy;
+			filters[d] = copyFilters(body, copy.fixtures.length);
+			filterHash = filterHash * 31 + hashFilters(body);
+			Vec2 position = body.getPosition();
+			Vec2 velocity = body.getLinearVelocity();
+			int offset = d * STRIDE;
+			states[offset] = position.x;
+			states[offset + 1] = position.y;
+			states[offset + 2] = body.getAngle();
+			states[offset + 3] = velocity.x;
+			states[offset + 4] = velocity.y;
+			states[offset + 5] = body.getAngularVelocity();
+			states[offset + 6] = body.isAwake() ? 1 : 0;
+			d++;
+		}
+		if (copies.size() > count) {
+			// bodies destroyed or deactivated since, they are copied again if they come back
+			Iterator<BodyCopy> iterator = copies.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().lastSeen != current) {
+					iterator.remove();
+				}
+			}
+		}
+		snapshot.bodies = bodies;
+		snapshot.copies = bodyCopies;
+		snapshot.filters = filters;
+		snapshot.states = states;
+		long hash = count * 31 + filterHash;
+		for (float value : states) {
+			hash = hash * 31 + Float.floatToRawIntBits(value);
+		}
+		snapshot.stateHash = hash;
+		return snapshot;
+	}
+
+	private void copyStatics(World world, int count) {
+		final float[] positions = new float[count * 3];
+		final FixtureDef[][] fixtures = new FixtureDef[count][];
+		int s = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() == BodyType.STATIC) {
+				Vec2 position = body.getPosition();
+				fixtures[s] = copyFixtures(body);
+				positions[s * 3] = position.x;
+				positions[s * 3 + 1] = position.y;
+				positions[s * 3 + 2] = body.getAngle();
+				s++;
+			}
+		}
+		// new arrays, the ones in earlier snapshots may still be read by the worker
+		copiedStaticPositions = positions;
+		copiedStatics = fixtures;
+	}
+
+	private static long hashFilters(Body body) {
+		long hash = 0;
+		for (Fixture fixture = body.getFixtureList(); fixture != null; fixture = fixture.getNext()) {
+			Filter filter = fixture.getFilterData();
+			hash = hash * 31 + filter.categoryBits;
+			hash = hash * 31 + filter.maskBits;
+			hash = hash * 31 + filter.groupIndex;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return category, mask and group of each fixture
+	 */
+	private static int[] copyFilters(Body body, int fixtures) {
+		int[] result = new int[fixtures * 3];
+		int offset = 0;
+		for (Fixture fixture = body.getFixtureList(); fixture != null && offset < result.length;
+		     fixture = fixture.getNext()) {
+			Filter filter = fixture.getFilterData();
+			result[offset++] = filter.categoryBits;
+			result[offset++] = filter.maskBits;
+			result[offset++] = filter.groupIndex;
+		}
+		return result;
+	}
+
+	/**
+	 * Copies the fixtures of a body, shapes and filters included. Must be called from the physics
+	 * thread.
+	 */
+	private static FixtureDef[] copyFixtures(Body source) {
+		int count = 0;
+		for (Fixture fixture = source.getFixtureList(); fixture != null; fixture = fixture.getNext()) {
+			count++;
+		}
+		FixtureDef[] result = new FixtureDef[count];
+		int i = 0;
+		for (Fixture fixture = source.getFixtureList(); fixture != null; fixture = fixture.getNext()) {
+			FixtureDef definition = new FixtureDef();
+			definition.shape = fixture.getShape().clone();
+			definition.density = fixture.getDensity();
+			definition.friction = fixture.getFriction();
+			definition.restitution = fixture.getRestitution();
+			definition.isSensor = fixture.isSensor();
+			definition.filter.set(fixture.getFilterData());
+			result[i++] = definition;
+		}
+		return result;
+	}
+
+	/**
+	 * Copies the definition of a dynamic or kinematic body. Must be called from the physics thread.
+	 */
+	private static BodyDef copyDefinition(Body source) {
+		BodyDef definition = new BodyDef();
+		definition.type = source.getType();
+		definition.linearDamping = source.getLinearDamping();
+		definition.angularDamping = source.getAngularDamping();
+		definition.gravityScale = source.getGravityScale();
+		definition.fixedRotation = source.isFixedRotation();
+		definition.bullet = source.isBullet();
+		return definition;
+	}
+
+	/**
+	 * Notified when a prediction is ready
+	 */
+	public interface Callback {
+
+		/**
+		 * Called from a background thread
+		 * @param trajectory predicted path of the body
+		 */
+		void onPrediction(Trajectory trajectory);
+
+	}
+
+	/**
+	 * Positions of a body, in pixels, after each predicted step
+	 */
+	public static final class Trajectory {
+
+		private final float[] points;
+
+		private Trajectory(float[] points) {
+			this.points = points;
+		}
+
+		/**
+		 * @return number of positions
+		 */
+		public int size() {
+			return points.length / 2;
+		}
+
+		public float getX(int step) {
+			return points[step * 2];
+		}
+
+		public float getY(int step) {
+			return points[step * 2 + 1];
+		}
+
+	}
+
+	private static final class Request {
+
+		final Body body;
+		final float impulseX, impulseY;
+		final int steps;
+		final Callback callback;
+
+		Request(Body body, float impulseX, float impulseY, int steps, Callback callback) {
+			this.body = body;
+			this.impulseX = impulseX;
+			this.impulseY = impulseY;
+			this.steps = steps;
+			this.callback = callback;
+		}
+
+	}
+
+	/**
+	 * Definitions of a dynamic or kinematic body and its fixtures, copied once in the physics
+	 * thread and only read afterwards
+	 */
+	private static final class BodyCopy {
+
+		final BodyDef definition;
+		final FixtureDef[] fixtures;
+
+		/**
+		 * Last snapshot that had the body, only used in the physics thread
+		 */
+		long lastSeen;
+
+		BodyCopy(BodyDef definition, FixtureDef[] fixtures) {
+			this.definition = definition;
+			this.fixtures = fixtures;
+		}
+
+	}
+
+	/**
+	 * Copy of the state needed for a prediction, taken in the physics thread by
+	 * {@link #snapshot(World, Origin)}
+	 */
+	private static final class Snapshot {
+
+		Vec2 gravity;
+
+		/**
+		 * Origin of the world when the state was copied
+		 */
+		Origin origin;
+
+		/**
+		 * Shared by every snapshot until the static bodies change
+		 */
+		float[] staticPositions;
+		FixtureDef[][] staticFixtures;
+
+		/**
+		 * Changes when static bodies are created, destroyed, moved or filtered differently
+		 */
+		long staticKey;
+
+		Body[] bodies;
+		BodyCopy[] copies;
+
+		/**
+		 * Category, mask and group of each fixture of each body
+		 */
+		int[][] filters;
+
+		float[] states;
+
+		/**
+		 * Hash of {@link #states} and the filters of the bodies
+		 */
+		long stateHash;
+
+	}
+
+	/**
+	 * Cached result of a prediction
+	 */
+	private static final class Result {
+
+		final Body body;
+		final float impulseX, impulseY;
+		final int steps;
+		final long staticKey;
+		final long stateHash;
+		final Trajectory trajectory;
+
+		Result(Request request, Snapshot snapshot, Trajectory trajectory) {
+			body = request.body;
+			impulseX = request.impulseX;
+			impulseY = request.impulseY;
+			steps = request.steps;
+			staticKey = snapshot.staticKey;
+			stateHash = snapshot.stateHash;
+			this.trajectory = trajectory;
+		}
+
+		boolean matches(Request request, Snapshot snapshot) {
+			return body == request.body && impulseX == request.impulseX
+				&& impulseY == request.impulseY && steps == request.steps
+				&& staticKey == snapshot.staticKey && stateHash == snapshot.stateHash;
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.pablisco.physics;
+
+import org.jbox2d.callbacks.QueryCallback;
+import org.jbox2d.callbacks.RayCastCallback;
+import org.jbox2d.collision.AABB;
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.Fixture;
+import org.jbox2d.dynamics.World;
+
+/**
+ * Runs the queries of {@link PhysicsEngine} on the physics thread. Parameters are in meters.
+ * <p/>
+ * The last few queries are cached with the step they were done after, so identical queries
+ * before the next step (i.e. the UI asking the same thing on every frame while the world is
+ * waiting) are copied instead of going through the broad phase again.
+ */
+final class WorldQuery implements QueryCallback, RayCastCallback {
+
+	static final int AREA = 0;
+	static final int POINT = 1;
+	static final int RAY = 2;
+
+	private static final int CACHE_SIZE = 8;
+
+	/* cache entries, replaced in round robin */
+
+	private final int[] types = new int[CACHE_SIZE];
+	private final float[][] parameters = new float[CACHE_SIZE][4];
+	private final long[] steps = new long[CACHE_SIZE];
+	private final QueryResult[] results = new QueryResult[CACHE_SIZE];
+	private int next;
+
+	/* state of the query in progress */
+
+	private QueryResult current;
+	private int currentType;
+	private Origin currentOrigin;
+	private final Vec2 point = new Vec2();
+	private final Vec2 from = new Vec2();
+	private final Vec2 to = new Vec2();
+	private final AABB area = new AABB();
+
+	/**
+	 * Used to find the objects of the bodies
+	 */
+	private final ObjectIndex objects;
+
+	WorldQuery(ObjectIndex objects) {
+		this.objects = objects;
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			steps[i] = -1;
+			results[i] = new QueryResult();
+		}
+	}
+
+	/**
+	 * Drops the cached results, used when bodies change without a step (i.e. objects created or
+	 * teleported)
+	 */
+	void invalidate() {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			steps[i] = -1;
+		}
+	}
+
+	/**
+	 * Fills the result with the bodies found by the query
+	 * @param type {@link #AREA}, {@link #POINT} or {@link #RAY}
+	 * @param step current step of the engine, used for caching
+	 * @param origin of the world, to give hits in pixels. It only moves between steps.
+	 */
+	void run(World world, long step, Origin origin, int type, float a, float b, float c, float d,
+	         QueryResult result) {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			float[] values = parameters[i];
+			if (steps[i] == step && types[i] == type && values[0] == a && values[1] == b
+				&& values[2] == c && values[3] == d) {
+				result.copyFrom(results[i]);
+				result.setCached(true);
+				return;
+			}
+		}
+		result.reset(step);
+		current = result;
+		currentType = type;
+		currentOrigin = origin;
+		switch (type) {
+			case AREA:
+				area.lowerBound.set(Math.min(a, c), Math.min(b, d));
+				area.upperBound.set(Math.max(a, c), Math.max(b, d));
+				world.queryAABB(this, area);
+				break;
+			case POINT:
+				point.set(a, b);
+				area.lowerBound.set(a, b);
+				area.upperBound.set(a, b);
+				world.queryAABB(this, area);
+				break;
+			case RAY:
+				from.set(a, b);
+				to.set(c, d);
+				if (from.x != to.x || from.y != to.y) {
+					world.raycast(this, from, to);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown query: " + type);
+		}
+		current = null;
+		int slot = next;
+		next = (next + 1) % CACHE_SIZE;
+		types[slot] = type;
+		float[] values = parameters[slot];
+		values[0] = a;
+		values[1] = b;
+		values[2] = c;
+		values[3] = d;
+		steps[slot] = step;
+		results[slot].copyFrom(result);
+	}
+
+	@Override
+	public boolean reportFixture(Fixture fixture) {
+		if (currentType == AREA || fixture.testPoint(point)) {
+			Body body = fixture.getBody();
+			current.add(body, objects.get(body));
+		}
+		return true;
+	}
+
+	@Override
+	public float reportFixture(Fixture fixture, Vec2 point, Vec2 normal, float fraction) {
+		Body body = fixture.getBody();
+		current.addHit(body, objects.get(body),
+			MeasurementUtil.worldToPixelX(currentOrigin, point.x),
+			MeasurementUtil.worldToPixelY(currentOrigin, point.y),
+			normal.x, normal.y, fraction);
+		// keep going to find all the bodies along the ray
+		return 1;
+	}
+
+}
@@ -0,0 +1,347 @@
+package com.pablisco.physics.lockstep;
+
+import com.pablisco.physics.PhysicsEngine;
+import com.pablisco.physics.StepGate;
+
+import org.jbox2d.dynamics.World;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lockstep simulation between several players (i.e. {@code Team.BLUE} against {@code Team.RED}).
+ * Used as the {@link StepGate} of a {@link PhysicsEngine}, it makes the engine advance by frame
+ * number instead of by time: frame <code>n</code> is only stepped once the inputs of every player
+ * for that frame have arrived.
+ * <p/>
+ * Local inputs are {@link #submit(int...) submitted} from any thread and scheduled
+ * {@link #LockstepSession(LockstepTransport, int, int, int) a few frames} in the future to hide
+ * the latency of the transport. Before each step, the inputs of every player for the frame are
+ * given to the {@link InputHandler} in player order, so all players apply the same changes to the
+ * world at the same step. Inputs are arrays of ints whose meaning is up to the game. Commands
+ * sent with {@link PhysicsEngine#applyImpulse} and similar are only applied locally so they
+ * shouldn't be used during a session.
+ * <p/>
+ * After each step the {@link WorldHash hash} of the world is shared with the other players and
+ * compared with theirs to detect desyncs. Sessions are attached to an engine with
+ * {@link #attachTo(PhysicsEngine)} so the hash knows when its objects change.
+ * <p/>
+ * On the wire, the inputs of a frame are a flat array where each input is preceded by its length.
+ */
+public class LockstepSession implements StepGate, LockstepTransport.Receiver {
+
+	/**
+	 * Frames kept for inputs and hashes. It has to be bigger than the input delay.
+	 */
+	private static final int WINDOW = 128;
+	private static final int MASK = WINDOW - 1;
+
+	private static final int[] NO_INPUTS = new int[0];
+
+	private final LockstepTransport transport;
+	private final int players;
+	private final int localPlayer;
+	private final int inputDelay;
+
+	private volatile InputHandler inputHandler;
+	private volatile DesyncListener desyncListener;
+	private volatile PhysicsEngine engine;
+
+	private final Queue<int[]> pendingInputs = new ConcurrentLinkedQueue<>();
+
+	/* per player and frame, guarded by this */
+
+	private final long[][] inputFrames;
+	private final int[][][] inputs;
+	private final long[][] remoteHashFrames;
+	private final long[][] remoteHashes;
+
+	/* local hashes, guarded by this */
+
+	private final long[] hashFrames = new long[WINDOW];
+	private final long[] hashes = new long[WINDOW];
+
+	/**
+	 * Kept up to date after each step, only used on the physics thread
+	 */
+	private final WorldHash worldHash = new WorldHash();
+
+	/**
+	 * Inputs of the frame being stepped, only used on the physics thread
+	 */
+	private final int[][] frameInputs;
+
+	/**
+	 * Arrays given to the {@link InputHandler}, by length, only used on the physics thread
+	 */
+	private int[][] inputsByLength = new int[8][];
+
+	/**
+	 * Next frame to be simulated, only changed on the physics thread
+	 */
+	private volatile long frame;
+
+	/**
+	 * Last frame sent by the local player
+	 */
+	private long lastSent;
+
+	/**
+	 * @param transport used to talk to the other players
+	 * @param players number of players in the session
+	 * @param localPlayer index of the player in this device, from 0 to players - 1
+	 * @param inputDelay frames between submitting an input and applying it
+	 */
+	public LockstepSession(LockstepTransport transport, int players, int localPlayer,
+	                       int inputDelay) {
+		if (localPlayer < 0 || localPlayer >= players) {
+			throw new IllegalArgumentException("Invalid local player: " + localPlayer);
+		}
+		if (inputDelay < 1 || inputDelay >= WINDOW) {
+			throw new IllegalArgumentException("Input delay must be between 1 and " + (WINDOW - 1));
+		}
+		this.transport = transport;
+		this.players = players;
+		this.localPlayer = localPlayer;
+		this.inputDelay = inputDelay;
+		inputFrames = new long[players][WINDOW];
+		inputs = new int[players][WINDOW][];
+		remoteHashFrames = new long[players][WINDOW];
+		remoteHashes = new long[players][WINDOW];
+		frameInputs = new int[players][];
+		for (int player = 0; player < players; player++) {
+			for (int i = 0; i < WINDOW; i++) {
+				// the first frames have no inputs from anybody
+				inputFrames[player][i] = i < inputDelay ? i : -1;
+				inputs[player][i] = NO_INPUTS;
+				remoteHashFrames[player][i] = -1;
+			}
+		}
+		for (int i = 0; i < WINDOW; i++) {
+			hashFrames[i] = -1;
+		}
+		lastSent = inputDelay - 1;
+		transport.setReceiver(this);
+	}
+
+	/**
+	 * Makes the session the {@link StepGate} of the engine
+	 * @param engine to step in lockstep
+	 * @return self
+	 */
+	public LockstepSession attachTo(PhysicsEngine engine) {
+		this.engine = engine;
+		engine.setStepGate(this);
+		return this;
+	}
+
+	/**
+	 * @param handler that applies the inputs to the world
+	 * @return self
+	 */
+	public LockstepSession setInputHandler(InputHandler handler) {
+		this.inputHandler = handler;
+		return this;
+	}
+
+	/**
+	 * @param listener notified when another player's world differs from ours
+	 * @return self
+	 */
+	public LockstepSession setDesyncListener(DesyncListener listener) {
+		this.desyncListener = listener;
+		return this;
+	}
+
+	/**
+	 * Schedules an input from the local player. Safe to call from any thread.
+	 * @param input game specific values
+	 */
+	public void submit(int... input) {
+		pendingInputs.add(input.clone());
+	}
+
+	/**
+	 * @return the next frame to be simulated
+	 */
+	public long getFrame() {
+		return frame;
+	}
+
+	@Override
+	public boolean beforeStep(World world) {
+		sendLocalFrame();
+		final long current = frame;
+		final int slot = (int) (current & MASK);
+		synchronized (this) {
+			for (int player = 0; player < players; player++) {
+				if (inputFrames[player][slot] != current) {
+					// still waiting for this player
+					return false;
+				}
+				frameInputs[player] = inputs[player][slot];
+			}
+		}
+		final InputHandler handler = inputHandler;
+		if (handler != null) {
+			for (int player = 0; player < players; player++) {
+				dispatch(handler, world, player, frameInputs[player]);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void afterStep(World world) {
+		final long current = frame;
+		final int slot = (int) (current & MASK);
+		final PhysicsEngine engine = this.engine;
+		final long hash = worldHash.update(world, current,
+			engine != null ? engine.getBodiesVersion() : 0);
+		synchronized (this) {
+			hashFrames[slot] = current;
+			hashes[slot] = hash;
+			for (int player = 0; player < players; player++) {
+				if (remoteHashFrames[player][slot] == current) {
+					check(player, current, remoteHashes[player][slot], hash);
+				}
+			}
+		}
+		frame = current + 1;
+	}
+
+	/**
+	 * Sends the inputs of the local player for the frame that is <code>inputDelay</code> frames
+	 * ahead, once per frame.
+	 */
+	private void sendLocalFrame() {
+		final long target = frame + inputDelay;
+		if (lastSent >= target) {
+			return;
+		}
+		int[] packed = pack();
+		final long hashFrame = frame - 1;
+		long hash = 0;
+		synchronized (this) {
+			int slot = (int) (target & MASK);
+			inputFrames[localPlayer][slot] = target;
+			inputs[localPlayer][slot] = packed;
+			if (hashFrame >= 0) {
+				hash = hashes[(int) (hashFrame & MASK)];
+			}
+		}
+		lastSent = target;
+		transport.send(localPlayer, target, packed, hashFrame, hash);
+	}
+
+	/**
+	 * Flattens all the pending inputs, each one preceded by its length
+	 */
+	private int[] pack() {
+		if (pendingInputs.isEmpty()) {
+			return NO_INPUTS;
+		}
+		int size = 0;
+		int count = 0;
+		for (int[] input : pendingInputs) {
+			size += input.length + 1;
+			count++;
+		}
+		int[] result = new int[size];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			int[] input = pendingInputs.poll();
+			result[position++] = input.length;
+			System.arraycopy(input, 0, result, position, input.length);
+			position += input.length;
+		}
+		return result;
+	}
+
+	private void dispatch(InputHandler handler, World world, int player, int[] packed) {
+		int position = 0;
+		while (position < packed.length) {
+			int length = packed[position++];
+			int[] input = inputOf(length);
+			System.arraycopy(packed, position, input, 0, length);
+			position += length;
+			handler.onInput(world, player, input);
+		}
+	}
+
+	/**
+	 * @return an array of the given length, reused between inputs
+	 */
+	private int[] inputOf(int length) {
+		if (length >= inputsByLength.length) {
+			inputsByLength = Arrays.copyOf(inputsByLength, length * 2);
+		}
+		int[] result = inputsByLength[length];
+		if (result == null) {
+			result = new int[length];
+			inputsByLength[length] = result;
+		}
+		return result;
+	}
+
+	@Override
+	public void onFrame(int player, long frame, int[] inputs, long hashFrame, long hash) {
+		if (player < 0 || player >= players || player == localPlayer) {
+			return;
+		}
+		synchronized (this) {
+			int slot = (int) (frame & MASK);
+			this.inputFrames[player][slot] = frame;
+			this.inputs[player][slot] = inputs;
+			if (hashFrame >= 0) {
+				int hashSlot = (int) (hashFrame & MASK);
+				if (hashFrames[hashSlot] == hashFrame) {
+					check(player, hashFrame, hash, hashes[hashSlot]);
+				} else {
+					// we haven't simulated that frame yet
+					remoteHashFrames[player][hashSlot] = hashFrame;
+					remoteHashes[player][hashSlot] = hash;
+				}
+			}
+		}
+	}
+
+	private void check(int player, long frame, long remoteHash, long localHash) {
+		final DesyncListener listener = desyncListener;
+		if (remoteHash != localHash && listener != null) {
+			listener.onDesync(player, frame, localHash, remoteHash);
+		}
+	}
+
+	/**
+	 * Applies the inputs of the players to the world. Called from the physics thread.
+	 */
+	public interface InputHandler {
+
+		/**
+		 * @param world about to be stepped
+		 * @param player that submitted the input
+		 * @param input values given to {@link #submit(int...)}, only valid during the call as
+		 *              the array is reused
+		 */
+		void onInput(World world, int player, int[] input);
+
+	}
+
+	/**
+	 * Notified when the world of another player has diverged from ours
+	 */
+	public interface DesyncListener {
+
+		/**
+		 * @param player whose world is different
+		 * @param frame where the difference was found
+		 * @param localHash hash of our world
+		 * @param remoteHash hash of the player's world
+		 */
+		void onDesync(int player, long frame, long localHash, long remoteHash);
+
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.pablisco.physics.lockstep;
+
+/**
+ * Channel used by {@link LockstepSession} to exchange frames with the other players. Each frame
+ * carries the inputs of a player for a step and the hash of the last step the player simulated.
+ * <p/>
+ * Implementations must deliver every frame of a player, in order, to the receiver of every other
+ * player.
+ */
+public interface LockstepTransport {
+
+	/**
+	 * Sends the frame of the local player to the rest of the players.
+	 * @param player index of the player sending the frame
+	 * @param frame step the inputs belong to
+	 * @param inputs inputs for the step, encoded as described in {@link LockstepSession}. It's
+	 *               not modified after sending.
+	 * @param hashFrame step the hash belongs to or -1 if there is no hash yet
+	 * @param hash hash of the world after simulating <code>hashFrame</code>
+	 */
+	void send(int player, long frame, int[] inputs, long hashFrame, long hash);
+
+	/**
+	 * @param receiver where frames from other players are delivered to
+	 */
+	void setReceiver(Receiver receiver);
+
+	/**
+	 * Receives frames from the other players. It can be called from any thread.
+	 */
+	interface Receiver {
+
+		/**
+		 * Same parameters as {@link LockstepTransport#send(int, long, int[], long, long)}
+		 */
+		void onFrame(int player, long frame, int[] inputs, long hashFrame, long hash);
+
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.pablisco.physics.lockstep;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link LockstepTransport} for sessions running in the same process, i.e. to test two players
+ * on one device. Frames are delivered straight away on the sending thread.
+ */
+public class LoopbackTransport implements LockstepTransport {
+
+	private final List<LoopbackTransport> peers;
+
+	private volatile Receiver receiver;
+
+	private LoopbackTransport(List<LoopbackTransport> peers) {
+		this.peers = peers;
+	}
+
+	/**
+	 * Creates a group of connected transports, one per player.
+	 * @param players number of players
+	 * @return the transports, in player order
+	 */
+	public static LoopbackTransport[] connect(int players) {
+		List<LoopbackTransport> peers = new ArrayList<>(players);
+		LoopbackTransport[] result = new LoopbackTransport[players];
+		for (int i = 0; i < players; i++) {
+			result[i] = new LoopbackTransport(peers);
+			peers.add(result[i]);
+		}
+		return result;
+	}
+
+	@Override
+	public void send(int player, long frame, int[] inputs, long hashFrame, long hash) {
+		for (LoopbackTransport peer : peers) {
+			final Receiver target = peer.receiver;
+			if (peer != this && target != null) {
+				target.onFrame(player, frame, inputs, hashFrame, hash);
+			}
+		}
+	}
+
+	@Override
+	public void setReceiver(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+}
@@ -0,0 +1,200 @@
+package com.pablisco.physics.lockstep;
+
+import com.pablisco.physics.PhysicsEngine;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.World;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Cheap hash of the state of the bodies in a world (position, angle and velocities). Two
+ * worlds that have been through the same steps produce the same hash, so it's used to detect
+ * when players are out of sync. Static bodies are left out: they are part of the table rather
+ * than of the state and the solver rounds their positions when other bodies touch them.
+ * <p/>
+ * The hash is the sum of the hashes of the bodies, so it doesn't depend on their order, and it's
+ * kept up to date with {@link #update(World, long, int)}: awake bodies are hashed on every update
+ * and sleeping bodies only once, when they fall asleep, so a table full of resting balls costs
+ * nothing. Everything is hashed again when bodies are created or destroyed, when the origin of
+ * the world moves (see {@link PhysicsEngine#getBodiesVersion()}) and every
+ * {@link #REHASH_INTERVAL} frames, which catches any other change to sleeping bodies that didn't
+ * wake them up.
+ */
+public class WorldHash {
+
+	private static final long OFFSET = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	/**
+	 * Frames between full hashes of the world
+	 */
+	public static final int REHASH_INTERVAL = 256;
+
+	/**
+	 * Hashes of the sleeping bodies and their sum
+	 */
+	private final Map<Body, Long> sleeping = new IdentityHashMap<>();
+	private long sleepingTotal;
+
+	/**
+	 * Bodies awake on the last update, in the order of the body list of the world, which doesn't
+	 * change while no bodies are added or removed
+	 */
+	private Body[] awake = new Body[64];
+	private int awakeCount;
+	private Body[] nowAwake = new Body[64];
+
+	/**
+	 * Bodies on the last full hash and how many of them aren't static
+	 */
+	private int bodyCount;
+	private int movingCount;
+
+	/**
+	 * Version of the bodies and first body of the world on the last update. The world adds new
+	 * bodies at the start of its list, so bodies created straight in the world (i.e. by inputs)
+	 * change the first one even when as many are destroyed.
+	 */
+	private int bodiesVersion;
+	private Body firstBody;
+
+	/**
+	 * Brings the hash up to date after a step. Must be called after every step of the world, from
+	 * the same thread.
+	 * @param world to hash
+	 * @param frame number of the step, so every player hashes everything on the same frames
+	 * @param bodiesVersion see {@link PhysicsEngine#getBodiesVersion()}
+	 * @return the hash of the world, the same {@link #hash(World)} returns
+	 */
+	public long update(World world, long frame, int bodiesVersion) {
+		if (frame % REHASH_INTERVAL == 0 || bodiesVersion != this.bodiesVersion
+			|| world.getBodyList() != firstBody || world.getBodyCount() != bodyCount) {
+			this.bodiesVersion = bodiesVersion;
+			return rehash(world);
+		}
+		long awakeTotal = 0;
+		int previous = 0;
+		int count = 0;
+		int seen = 0;
+		// new bodies go first in the list so static tables are usually at the end
+		for (Body body = world.getBodyList(); body != null && seen < movingCount;
+		     body = body.getNext()) {
+			if (body.getType() == BodyType.STATIC) {
+				continue;
+			}
+			seen++;
+			final boolean wasAwake = previous < awakeCount && awake[previous] == body;
+			if (wasAwake) {
+				previous++;
+			}
+			if (body.isAwake()) {
+				if (!wasAwake) {
+					final Long value = sleeping.remove(body);
+					if (value == null) {
+						// as many bodies added as removed
+						return rehash(world);
+					}
+					sleepingTotal -= value;
+				}
+				awakeTotal += hash(body);
+				nowAwake = append(nowAwake, count++, body);
+			} else if (wasAwake) {
+				// fell asleep, its velocities have been cleared
+				final long value = hash(body);
+				sleeping.put(body, value);
+				sleepingTotal += value;
+			}
+		}
+		swap(count);
+		return sleepingTotal + awakeTotal;
+	}
+
+	/**
+	 * Hashes every body again
+	 */
+	private long rehash(World world) {
+		sleeping.clear();
+		sleepingTotal = 0;
+		firstBody = world.getBodyList();
+		bodyCount = world.getBodyCount();
+		movingCount = 0;
+		long awakeTotal = 0;
+		int count = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() == BodyType.STATIC) {
+				continue;
+			}
+			movingCount++;
+			final long value = hash(body);
+			if (body.isAwake()) {
+				awakeTotal += value;
+				nowAwake = append(nowAwake, count++, body);
+			} else {
+				sleeping.put(body, value);
+				sleepingTotal += value;
+			}
+		}
+		swap(count);
+		return sleepingTotal + awakeTotal;
+	}
+
+	/**
+	 * Keeps the bodies awake now for the next update
+	 */
+	private void swap(int count) {
+		final Body[] previous = awake;
+		Arrays.fill(previous, 0, awakeCount, null);
+		awake = nowAwake;
+		awakeCount = count;
+		nowAwake = previous;
+	}
+
+	private static Body[] append(Body[] bodies, int index, Body body) {
+		if (index == bodies.length) {
+			bodies = Arrays.copyOf(bodies, index * 2);
+		}
+		bodies[index] = body;
+		return bodies;
+	}
+
+	/**
+	 * Hashes the whole world at once
+	 * @param world to hash
+	 * @return the sum of the hashes of the bodies that aren't static
+	 */
+	public static long hash(World world) {
+		long result = 0;
+		for (Body body = world.getBodyList(); body != null; body = body.getNext()) {
+			if (body.getType() != BodyType.STATIC) {
+				result += hash(body);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * FNV-1a over the raw bits of the state of the body
+	 */
+	private static long hash(Body body) {
+		Vec2 position = body.getPosition();
+		Vec2 velocity = body.getLinearVelocity();
+		long hash = OFFSET;
+		hash = mix(hash, position.x);
+		hash = mix(hash, position.y);
+		hash = mix(hash, body.getAngle());
+		hash = mix(hash, velocity.x);
+		hash = mix(hash, velocity.y);
+		hash = mix(hash, body.getAngularVelocity());
+		return hash;
+	}
+
+	private static long mix(long hash, float value) {
+		return (hash ^ Float.floatToRawIntBits(value)) * PRIME;
+	}
+
+}
@@ -2,10 +2,19 @@ package com.pablisco.physics.objects;
 
 import android.graphics.Canvas;
 
+import com.pablisco.physics.DisplayList;
+import com.pablisco.physics.MeasurementUtil;
+import com.pablisco.physics.Origin;
+import com.pablisco.physics.Recordable;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+
 /**
  * Created by pablisco on 28/01/2015.
  */
-public abstract class AbstractBox<S extends AbstractBox<S>> extends ShapeObject<S> {
+public abstract class AbstractBox<S extends AbstractBox<S>> extends ShapeObject<S>
+	implements Recordable {
 
 	protected float top, left, right, bottom;
 
@@ -16,6 +25,10 @@ public abstract class AbstractBox<S extends AbstractBox<S>> extends ShapeObject<
 	public AbstractBox(float width, float height) {
 		this.width = width;
 		this.height = height;
+		updateEdges();
+	}
+
+	private void updateEdges() {
 		top = height * -0.5f;
 		bottom = height * 0.5f;
 		left = width * -0.5f;
@@ -31,6 +44,20 @@ public abstract class AbstractBox<S extends AbstractBox<S>> extends ShapeObject<
 		return self();
 	}
 
+	/**
+	 * @return width of the box in pixels
+	 */
+	public float getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the box in pixels
+	 */
+	public float getHeight() {
+		return height;
+	}
+
 	@Override
 	public boolean requiresRelative() {
 		return super.requiresRelative() || requiresRelative;
@@ -42,6 +69,7 @@ public abstract class AbstractBox<S extends AbstractBox<S>> extends ShapeObject<
 		if (requiresRelative) {
 			this.width = width * this.width;
 			this.height = height * this.height;
+			updateEdges();
 			requiresRelative = false;
 		}
 	}
@@ -49,7 +77,36 @@ public abstract class AbstractBox<S extends AbstractBox<S>> extends ShapeObject<
 	@Override
 	protected void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
-		canvas.drawRect(left, top, right, bottom, getPaint());
+		canvas.drawRect(left, top, right, bottom, getDrawPaint());
+	}
+
+	/**
+	 * Records the same rectangle drawn by {@link #onDraw(Canvas)}. Subclasses drawing anything
+	 * else should override it. Boxes with a paint of their own are drawn directly.
+	 */
+	@Override
+	public void record(DisplayList list) {
+		final Body body = this.body;
+		if (!isVisible() || body == null) {
+			return;
+		}
+		if (hasOwnPaint()) {
+			list.addDirect(this);
+			return;
+		}
+		final Vec2 position = body.getPosition();
+		final float angle = body.getAngle();
+		// the box may not be centered on the body
+		final float centerX = (left + right) * 0.5f;
+		final float centerY = (top + bottom) * 0.5f;
+		final float cos = (float) Math.cos(angle);
+		final float sin = (float) Math.sin(angle);
+		final Origin origin = getDrawOrigin();
+		list.addRect(
+			MeasurementUtil.worldToPixelX(origin, position.x) + centerX * cos - centerY * sin,
+			MeasurementUtil.worldToPixelY(origin, position.y) + centerX * sin + centerY * cos,
+			(float) Math.toDegrees(angle), (right - left) * 0.5f, (bottom - top) * 0.5f,
+			getStyleId());
 	}
 
 }
@@ -4,9 +4,12 @@ import android.graphics.Canvas;
 
 import com.pablisco.physics.PhysicsEngine;
 import com.pablisco.physics.PhysicsObject;
+import com.pablisco.physics.StyleRegistry;
 
+import org.jbox2d.dynamics.BodyType;
 import org.jbox2d.dynamics.World;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -19,6 +22,11 @@ public abstract class CompoundObject implements PhysicsObject {
 
 	private List<PhysicsObject> children = createChildren();
 
+	/**
+	 * Children sorted by style so the ones sharing a paint are drawn together
+	 */
+	private PhysicsObject[] drawOrder;
+
 	protected abstract List<PhysicsObject> createChildren();
 
 	@Override
@@ -42,11 +50,36 @@ public abstract class CompoundObject implements PhysicsObject {
 
 	@Override
 	public void draw(Canvas canvas) {
-		for (PhysicsObject child : children) {
+		if (drawOrder == null) {
+			drawOrder = children.toArray(new PhysicsObject[children.size()]);
+			Arrays.sort(drawOrder, StyleRegistry.BY_STYLE);
+		}
+		for (PhysicsObject child : drawOrder) {
 			child.draw(canvas);
 		}
 	}
 
+	/**
+	 * Children may have different styles
+	 * @return {@link StyleRegistry#NO_STYLE}
+	 */
+	@Override
+	public int getStyleId() {
+		return StyleRegistry.NO_STYLE;
+	}
+
+	@Override
+	public BodyType getBodyType() {
+		BodyType result = BodyType.STATIC;
+		for (PhysicsObject child : children) {
+			BodyType type = child.getBodyType();
+			if (type.ordinal() > result.ordinal()) {
+				result = type;
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public void onAttach(PhysicsEngine engine) {
 		for (PhysicsObject child : children) {
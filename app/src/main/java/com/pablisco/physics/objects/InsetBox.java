@@ -3,11 +3,11 @@ package com.pablisco.physics.objects;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 
-import com.pablisco.physics.Vecs;
+import com.pablisco.physics.StaticGeometry;
 
-import org.jbox2d.collision.shapes.ChainShape;
 import org.jbox2d.collision.shapes.Shape;
-import org.jbox2d.common.Vec2;
+
+import static com.pablisco.physics.MeasurementUtil.pixelToMeters;
 
 /**
  * Created by pablisco on 28/01/2015.
@@ -16,21 +16,17 @@ public class InsetBox extends AbstractBox<InsetBox> {
 
 	public InsetBox(float width, float height) {
 		super(width, height);
-		getPaint().setStyle(Paint.Style.STROKE);
+		setPaintStyle(Paint.Style.STROKE);
 	}
 
+	/**
+	 * A loop, so the corners are joined with ghost vertices and there is no seam where the
+	 * chain starts
+	 */
 	@Override
 	protected Shape createShape() {
-		ChainShape shape = new ChainShape();
-		Vec2[] vertices = Vecs.vec2Array(
-			left, top,
-			right, top,
-			right, bottom,
-			left, bottom,
-			left, top
-		);
-		shape.createChain(vertices, vertices.length);
-		return shape;
+		return StaticGeometry.createLoop(pixelToMeters(left), pixelToMeters(top),
+			pixelToMeters(right), pixelToMeters(bottom));
 	}
 
 	@Override
@@ -0,0 +1,446 @@
+package com.pablisco.physics.tables;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import com.pablisco.physics.CollisionMatrix;
+import com.pablisco.physics.DisplayList;
+import com.pablisco.physics.Origin;
+import com.pablisco.physics.PhysicsEngine;
+import com.pablisco.physics.PhysicsObject;
+import com.pablisco.physics.Recordable;
+import com.pablisco.physics.StaticGeometry;
+import com.pablisco.physics.StyleRegistry;
+
+import org.jbox2d.collision.shapes.ChainShape;
+import org.jbox2d.collision.shapes.PolygonShape;
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyDef;
+import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.FixtureDef;
+import org.jbox2d.dynamics.World;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.pablisco.physics.MeasurementUtil.PPM;
+import static com.pablisco.physics.MeasurementUtil.pixelToWorldX;
+import static com.pablisco.physics.MeasurementUtil.pixelToWorldY;
+import static com.pablisco.physics.MeasurementUtil.worldToPixelX;
+import static com.pablisco.physics.MeasurementUtil.worldToPixelY;
+import static com.pablisco.physics.tables.TableFormat.ENTRY_SIZE;
+import static com.pablisco.physics.tables.TableFormat.FLAG_HOLLOW;
+import static com.pablisco.physics.tables.TableFormat.FLAG_INVISIBLE;
+import static com.pablisco.physics.tables.TableFormat.FLAG_RELATIVE_POSITION;
+import static com.pablisco.physics.tables.TableFormat.FLAG_RELATIVE_SIZE;
+import static com.pablisco.physics.tables.TableFormat.HEADER_SIZE;
+import static com.pablisco.physics.tables.TableFormat.KIND_BOX;
+import static com.pablisco.physics.tables.TableFormat.KIND_INSET_BOX;
+import static com.pablisco.physics.tables.TableFormat.MAGIC;
+import static com.pablisco.physics.tables.TableFormat.VERSION;
+
+/**
+ * A whole table loaded from the output of {@link TableCompiler}. It behaves as a single
+ * {@link PhysicsObject} so it can be added to a {@link PhysicsEngine} like any other object.
+ * <p/>
+ * All the data is kept in primitive arrays and all the bodies are created in one go in
+ * {@link #onCreate(World)}, sharing the same definitions, instead of building one object at a time.
+ */
+public class CompiledTable implements PhysicsObject, Recordable {
+
+	private static final BodyType[] BODY_TYPES = BodyType.values();
+
+	private static final byte STATIC = (byte) BodyType.STATIC.ordinal();
+
+	private final int count;
+
+	private final byte[] kinds;
+	private final byte[] types;
+	private final byte[] flags;
+	private final float[] densities;
+	private final float[] frictions;
+	private final float[] restitutions;
+
+	/**
+	 * Positions and sizes in pixels once relative values are resolved
+	 */
+	private final float[] xs, ys, halfWidths, halfHeights;
+
+	/**
+	 * Ids in {@link StyleRegistry}
+	 */
+	private final int[] styleIds;
+
+	/**
+	 * Indexes of the objects sorted by style, so objects sharing a paint are drawn together
+	 */
+	private final int[] drawOrder;
+
+	private final Body[] bodies;
+
+	/**
+	 * Body with the merged outlines of the static boxes, shared by all of them
+	 */
+	private Body geometry;
+
+	private boolean requiresRelative;
+
+	/**
+	 * Engine the table is attached to, for the origin of its world
+	 */
+	private PhysicsEngine engine;
+
+	/**
+	 * Matrix of the engine the table is attached to
+	 */
+	private CollisionMatrix collisionMatrix;
+
+	private CompiledTable(int count) {
+		this.count = count;
+		kinds = new byte[count];
+		types = new byte[count];
+		flags = new byte[count];
+		densities = new float[count];
+		frictions = new float[count];
+		restitutions = new float[count];
+		xs = new float[count];
+		ys = new float[count];
+		halfWidths = new float[count];
+		halfHeights = new float[count];
+		styleIds = new int[count];
+		drawOrder = new int[count];
+		bodies = new Body[count];
+	}
+
+	/**
+	 * Loads a table compiled with {@link TableCompiler}
+	 * @param input source of the binary table. It's not closed.
+	 * @return a new table ready to be added to a {@link PhysicsEngine}
+	 * @throws IOException if the table can't be read or it's corrupt
+	 * @throws IllegalArgumentException if the input is not a compiled table
+	 */
+	public static CompiledTable read(InputStream input) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(readFully(input));
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IllegalArgumentException("Not a compiled table");
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported table version: " + version);
+		}
+		int declared = buffer.getInt();
+		if (declared < 0 || declared > buffer.remaining() / ENTRY_SIZE) {
+			throw new IOException("Corrupt table: " + declared + " objects in "
+				+ buffer.remaining() + " bytes");
+		}
+		CompiledTable table = new CompiledTable(declared);
+		int count = table.count;
+		buffer.get(table.kinds);
+		buffer.get(table.types);
+		buffer.get(table.flags);
+		for (int i = 0; i < count; i++) {
+			if (table.kinds[i] != KIND_BOX && table.kinds[i] != KIND_INSET_BOX) {
+				throw new IOException("Corrupt table: unknown kind " + table.kinds[i]
+					+ " of object " + i);
+			}
+			if (table.types[i] < 0 || table.types[i] >= BODY_TYPES.length) {
+				throw new IOException("Corrupt table: unknown body type " + table.types[i]
+					+ " of object " + i);
+			}
+		}
+		int[] colors = new int[count];
+		buffer.asIntBuffer().get(colors);
+		buffer.position(buffer.position() + count * 4);
+		readFloats(buffer, table.densities);
+		readFloats(buffer, table.frictions);
+		readFloats(buffer, table.restitutions);
+		readFloats(buffer, table.xs);
+		readFloats(buffer, table.ys);
+		readFloats(buffer, table.halfWidths);
+		readFloats(buffer, table.halfHeights);
+		for (int i = 0; i < count; i++) {
+			Paint.Style style = table.kinds[i] == KIND_INSET_BOX
+				? Paint.Style.STROKE : Paint.Style.FILL;
+			table.styleIds[i] = StyleRegistry.intern(colors[i], 0f, style);
+			if ((table.flags[i] & (FLAG_RELATIVE_POSITION | FLAG_RELATIVE_SIZE)) != 0) {
+				table.requiresRelative = true;
+			}
+		}
+		table.sortByStyle();
+		return table;
+	}
+
+	private static byte[] readFully(InputStream input) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(input.available());
+		byte[] chunk = new byte[4096];
+		int read;
+		while ((read = input.read(chunk)) != -1) {
+			result.write(chunk, 0, read);
+		}
+		return result.toByteArray();
+	}
+
+	private static void readFloats(ByteBuffer buffer, float[] target) {
+		buffer.asFloatBuffer().get(target);
+		buffer.position(buffer.position() + target.length * 4);
+	}
+
+	/**
+	 * Insertion sort of {@link #drawOrder}, stable so objects with the same style keep the order
+	 * of the definition.
+	 */
+	private void sortByStyle() {
+		for (int i = 0; i < count; i++) {
+			int index = i;
+			int j = i - 1;
+			while (j >= 0 && styleIds[drawOrder[j]] > styleIds[index]) {
+				drawOrder[j + 1] = drawOrder[j];
+				j--;
+			}
+			drawOrder[j + 1] = index;
+		}
+	}
+
+	/**
+	 * @return number of objects in the table
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param index of the object, in the same order as the definition
+	 * @return the body of the object or null if the table hasn't been created yet. Solid static
+	 * boxes merged together share the same body.
+	 */
+	public Body getBody(int index) {
+		return bodies[index];
+	}
+
+	@Override
+	public boolean requiresRelative() {
+		return requiresRelative;
+	}
+
+	@Override
+	public void setupRelative(int width, int height) {
+		if (bodies.length > 0 && bodies[0] != null) {
+			throw new IllegalStateException("bodies were initiated before positions calculated");
+		}
+		for (int i = 0; i < count; i++) {
+			if ((flags[i] & FLAG_RELATIVE_POSITION) != 0) {
+				xs[i] *= width;
+				ys[i] *= height;
+			}
+			if ((flags[i] & FLAG_RELATIVE_SIZE) != 0) {
+				halfWidths[i] *= width;
+				halfHeights[i] *= height;
+			}
+			flags[i] &= ~(FLAG_RELATIVE_POSITION | FLAG_RELATIVE_SIZE);
+		}
+		requiresRelative = false;
+	}
+
+	@Override
+	public void draw(Canvas canvas) {
+		Origin origin = getDrawOrigin();
+		for (int n = 0; n < count; n++) {
+			int i = drawOrder[n];
+			Body body = bodies[i];
+			if (body == null || (flags[i] & FLAG_INVISIBLE) != 0) {
+				continue;
+			}
+			if (types[i] == STATIC) {
+				// static bodies stay where they were created
+				canvas.drawRect(xs[i] - halfWidths[i], ys[i] - halfHeights[i],
+					xs[i] + halfWidths[i], ys[i] + halfHeights[i],
+					StyleRegistry.getPaint(styleIds[i]));
+				continue;
+			}
+			Vec2 position = body.getPosition();
+			canvas.save();
+			canvas.translate(worldToPixelX(origin, position.x), worldToPixelY(origin, position.y));
+			canvas.rotate((float) Math.toDegrees(body.getAngle()));
+			canvas.drawRect(-halfWidths[i], -halfHeights[i], halfWidths[i], halfHeights[i],
+				StyleRegistry.getPaint(styleIds[i]));
+			canvas.restore();
+		}
+	}
+
+	@Override
+	public void record(DisplayList list) {
+		Origin origin = getDrawOrigin();
+		for (int n = 0; n < count; n++) {
+			int i = drawOrder[n];
+			Body body = bodies[i];
+			if (body == null || (flags[i] & FLAG_INVISIBLE) != 0) {
+				continue;
+			}
+			if (types[i] == STATIC) {
+				list.addRect(xs[i], ys[i], 0, halfWidths[i], halfHeights[i], styleIds[i]);
+			} else {
+				Vec2 position = body.getPosition();
+				list.addRect(worldToPixelX(origin, position.x), worldToPixelY(origin, position.y),
+					(float) Math.toDegrees(body.getAngle()), halfWidths[i], halfHeights[i],
+					styleIds[i]);
+			}
+		}
+	}
+
+	/**
+	 * Objects in the table may have different styles
+	 * @return {@link StyleRegistry#NO_STYLE}
+	 */
+	@Override
+	public int getStyleId() {
+		return StyleRegistry.NO_STYLE;
+	}
+
+	@Override
+	public BodyType getBodyType() {
+		int result = STATIC;
+		for (int i = 0; i < count; i++) {
+			result = Math.max(result, types[i]);
+		}
+		return BODY_TYPES[result];
+	}
+
+	@Override
+	public void onAttach(PhysicsEngine engine) {
+		this.engine = engine;
+		collisionMatrix = engine.getCollisionMatrix();
+	}
+
+	private Origin getOrigin() {
+		return engine != null ? engine.getOrigin() : Origin.ZERO;
+	}
+
+	private Origin getDrawOrigin() {
+		return engine != null ? engine.getDrawOrigin() : Origin.ZERO;
+	}
+
+	/**
+	 * Creates every body of the table reusing the same definitions. The world copies them when
+	 * creating bodies and fixtures.
+	 * <p/>
+	 * Solid static boxes sharing the same material are merged with {@link StaticGeometry} into
+	 * loops attached to a single body, so walls made of many pieces need a few fixtures.
+	 */
+	@Override
+	public void onCreate(World world) {
+		BodyDef bodyDef = new BodyDef();
+		bodyDef.active = true;
+		FixtureDef fixtureDef = new FixtureDef();
+		Origin origin = getOrigin();
+		boolean[] merged = mergeStaticBoxes(world, bodyDef, fixtureDef, origin);
+		PolygonShape box = new PolygonShape();
+		for (int i = 0; i < count; i++) {
+			if (merged[i]) {
+				bodies[i] = geometry;
+				continue;
+			}
+			float halfWidth = halfWidths[i] / PPM;
+			float halfHeight = halfHeights[i] / PPM;
+			bodyDef.type = BODY_TYPES[types[i]];
+			bodyDef.position.set(pixelToWorldX(origin, xs[i]), pixelToWorldY(origin, ys[i]));
+			if (kinds[i] == KIND_INSET_BOX) {
+				fixtureDef.shape = StaticGeometry.createLoop(
+					-halfWidth, -halfHeight, halfWidth, halfHeight);
+			} else {
+				box.setAsBox(halfWidth, halfHeight);
+				fixtureDef.shape = box;
+			}
+			fixtureDef.density = densities[i];
+			fixtureDef.friction = frictions[i];
+			fixtureDef.restitution = restitutions[i];
+			setupFilter(fixtureDef, (flags[i] & FLAG_HOLLOW) != 0
+				? CollisionMatrix.HOLLOW : CollisionMatrix.DEFAULT);
+			Body body = world.createBody(bodyDef);
+			body.createFixture(fixtureDef);
+			bodies[i] = body;
+		}
+	}
+
+	/**
+	 * Creates {@link #geometry} with the outlines of the solid static boxes, grouped by
+	 * material. Boxes with a material no other box has are left alone.
+	 * @return which objects have been merged
+	 */
+	private boolean[] mergeStaticBoxes(World world, BodyDef bodyDef, FixtureDef fixtureDef,
+	                                   Origin origin) {
+		final boolean[] merged = new boolean[count];
+		final List<StaticGeometry> groups = new ArrayList<>();
+		final List<Integer> firsts = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			if (kinds[i] != KIND_BOX || types[i] != STATIC || (flags[i] & FLAG_HOLLOW) != 0) {
+				continue;
+			}
+			int group = 0;
+			while (group < groups.size() && !sameMaterial(firsts.get(group), i)) {
+				group++;
+			}
+			if (group == groups.size()) {
+				groups.add(new StaticGeometry());
+				firsts.add(i);
+			}
+			groups.get(group).addBox(
+				(xs[i] - halfWidths[i]) / PPM, (ys[i] - halfHeights[i]) / PPM,
+				(xs[i] + halfWidths[i]) / PPM, (ys[i] + halfHeights[i]) / PPM);
+			merged[i] = true;
+		}
+		for (int group = 0; group < groups.size(); group++) {
+			final StaticGeometry boxes = groups.get(group);
+			final int first = firsts.get(group);
+			if (boxes.getBoxCount() < 2) {
+				merged[first] = false;
+				continue;
+			}
+			if (geometry == null) {
+				bodyDef.type = BodyType.STATIC;
+				// vertices are relative to the top left corner of the screen
+				bodyDef.position.set(pixelToWorldX(origin, 0), pixelToWorldY(origin, 0));
+				geometry = world.createBody(bodyDef);
+			}
+			fixtureDef.friction = frictions[first];
+			fixtureDef.restitution = restitutions[first];
+			setupFilter(fixtureDef, CollisionMatrix.DEFAULT);
+			for (ChainShape loop : boxes.build()) {
+				fixtureDef.shape = loop;
+				geometry.createFixture(fixtureDef);
+			}
+		}
+		return merged;
+	}
+
+	private boolean sameMaterial(int a, int b) {
+		return frictions[a] == frictions[b] && restitutions[a] == restitutions[b];
+	}
+
+	private void setupFilter(FixtureDef fixtureDef, int category) {
+		if (collisionMatrix != null) {
+			collisionMatrix.setup(fixtureDef.filter, category);
+		} else {
+			CollisionMatrix.setupDefault(fixtureDef.filter, category);
+		}
+	}
+
+	@Override
+	public void onDestroy(World world) {
+		for (int i = 0; i < count; i++) {
+			if (bodies[i] != null && bodies[i] != geometry) {
+				world.destroyBody(bodies[i]);
+			}
+			bodies[i] = null;
+		}
+		if (geometry != null) {
+			world.destroyBody(geometry);
+			geometry = null;
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+package com.pablisco.physics.tables;
+
+import org.jbox2d.dynamics.BodyType;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Locale;
+
+import static com.pablisco.physics.tables.TableFormat.FLAG_HOLLOW;
+import static com.pablisco.physics.tables.TableFormat.FLAG_INVISIBLE;
+import static com.pablisco.physics.tables.TableFormat.FLAG_RELATIVE_POSITION;
+import static com.pablisco.physics.tables.TableFormat.FLAG_RELATIVE_SIZE;
+import static com.pablisco.physics.tables.TableFormat.KIND_BOX;
+import static com.pablisco.physics.tables.TableFormat.KIND_INSET_BOX;
+import static com.pablisco.physics.tables.TableFormat.MAGIC;
+import static com.pablisco.physics.tables.TableFormat.VERSION;
+
+/**
+ * Turns a declarative table definition into the compact binary form read by
+ * {@link CompiledTable#read(java.io.InputStream)}.
+ * <p/>
+ * A definition has one object per line (empty lines and lines starting with <code>#</code> are
+ * ignored):
+ * <pre>
+ * # kind  width height x   y   options
+ * inset   1.0   1.0    0.5 0.5 relative type=static
+ * box     40    40     0.5 0.2 relative-position color=#ff0000
+ * </pre>
+ * Kinds are <code>box</code> and <code>inset</code> (same as {@link
+ * com.pablisco.physics.objects.Box} and {@link com.pablisco.physics.objects.InsetBox}).
+ * Available options are <code>relative</code>, <code>relative-size</code>,
+ * <code>relative-position</code>, <code>hollow</code>, <code>hidden</code>,
+ * <code>type=static|kinematic|dynamic</code>, <code>color=#[aa]rrggbb</code>,
+ * <code>density=</code>, <code>friction=</code> and <code>restitution=</code>.
+ * <p/>
+ * It has no android dependencies so it can be run at build time with {@link #main(String[])}.
+ */
+public class TableCompiler {
+
+	/* same defaults as BasePhysicsObject */
+
+	private static final int DEFAULT_COLOR = 0xFFFFFFFF;
+	private static final float DEFAULT_DENSITY = 0.8f;
+	private static final float DEFAULT_FRICTION = 0.7f;
+	private static final float DEFAULT_RESTITUTION = 0.8f;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int count;
+
+	private byte[] kinds = new byte[INITIAL_CAPACITY];
+	private byte[] types = new byte[INITIAL_CAPACITY];
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	private int[] colors = new int[INITIAL_CAPACITY];
+	private float[] densities = new float[INITIAL_CAPACITY];
+	private float[] frictions = new float[INITIAL_CAPACITY];
+	private float[] restitutions = new float[INITIAL_CAPACITY];
+	private float[] xs = new float[INITIAL_CAPACITY];
+	private float[] ys = new float[INITIAL_CAPACITY];
+	private float[] halfWidths = new float[INITIAL_CAPACITY];
+	private float[] halfHeights = new float[INITIAL_CAPACITY];
+
+	/**
+	 * Reads a table definition and writes the compiled form.
+	 * @param definition source in text form
+	 * @param output where the binary form is written to. It's not closed.
+	 * @throws IOException if reading or writing fails
+	 * @throws IllegalArgumentException if the definition is not valid
+	 */
+	public static void compile(Reader definition, OutputStream output) throws IOException {
+		TableCompiler compiler = new TableCompiler();
+		compiler.parse(definition);
+		compiler.write(output);
+	}
+
+	/**
+	 * Command line entry point: <code>TableCompiler input.table output.bin</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: TableCompiler <definition> <output>");
+			System.exit(1);
+		}
+		Reader input = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+		OutputStream output = new FileOutputStream(args[1]);
+		try {
+			compile(input, output);
+		} finally {
+			input.close();
+			output.close();
+		}
+	}
+
+	private TableCompiler() {
+		// use compile()
+	}
+
+	private void parse(Reader definition) throws IOException {
+		BufferedReader reader = new BufferedReader(definition);
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				parseEntry(line.split("\\s+"));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private void parseEntry(String[] tokens) {
+		if (tokens.length < 5) {
+			throw new IllegalArgumentException("Expected: kind width height x y [options]");
+		}
+		ensureCapacity(count + 1);
+		int i = count;
+		kinds[i] = parseKind(tokens[0]);
+		halfWidths[i] = Float.parseFloat(tokens[1]) * 0.5f;
+		halfHeights[i] = Float.parseFloat(tokens[2]) * 0.5f;
+		xs[i] = Float.parseFloat(tokens[3]);
+		ys[i] = Float.parseFloat(tokens[4]);
+		types[i] = (byte) BodyType.DYNAMIC.ordinal();
+		flags[i] = 0;
+		colors[i] = DEFAULT_COLOR;
+		densities[i] = DEFAULT_DENSITY;
+		frictions[i] = DEFAULT_FRICTION;
+		restitutions[i] = DEFAULT_RESTITUTION;
+		for (int t = 5; t < tokens.length; t++) {
+			parseOption(i, tokens[t]);
+		}
+		count++;
+	}
+
+	private static byte parseKind(String kind) {
+		if ("box".equals(kind)) {
+			return KIND_BOX;
+		} else if ("inset".equals(kind)) {
+			return KIND_INSET_BOX;
+		}
+		throw new IllegalArgumentException("Unknown kind: " + kind);
+	}
+
+	private void parseOption(int i, String option) {
+		int split = option.indexOf('=');
+		String key = split < 0 ? option : option.substring(0, split);
+		String value = split < 0 ? null : option.substring(split + 1);
+		if ("relative".equals(key)) {
+			flags[i] |= FLAG_RELATIVE_POSITION | FLAG_RELATIVE_SIZE;
+		} else if ("relative-position".equals(key)) {
+			flags[i] |= FLAG_RELATIVE_POSITION;
+		} else if ("relative-size".equals(key)) {
+			flags[i] |= FLAG_RELATIVE_SIZE;
+		} else if ("hollow".equals(key)) {
+			flags[i] |= FLAG_HOLLOW;
+		} else if ("hidden".equals(key)) {
+			flags[i] |= FLAG_INVISIBLE;
+		} else if (value == null) {
+			throw new IllegalArgumentException("Option requires a value: " + key);
+		} else if ("type".equals(key)) {
+			types[i] = (byte) BodyType.valueOf(value.toUpperCase(Locale.US)).ordinal();
+		} else if ("color".equals(key)) {
+			colors[i] = parseColor(value);
+		} else if ("density".equals(key)) {
+			densities[i] = Float.parseFloat(value);
+		} else if ("friction".equals(key)) {
+			frictions[i] = Float.parseFloat(value);
+		} else if ("restitution".equals(key)) {
+			restitutions[i] = Float.parseFloat(value);
+		} else {
+			throw new IllegalArgumentException("Unknown option: " + key);
+		}
+	}
+
+	/**
+	 * Equivalent to {@link android.graphics.Color#parseColor(String)} for hex values, but usable
+	 * outside of android.
+	 */
+	private static int parseColor(String value) {
+		if (!value.startsWith("#") || (value.length() != 7 && value.length() != 9)) {
+			throw new IllegalArgumentException("Unknown color: " + value);
+		}
+		long color = Long.parseLong(value.substring(1), 16);
+		if (value.length() == 7) {
+			// no alpha provided
+			color |= 0xFF000000L;
+		}
+		return (int) color;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= kinds.length) {
+			return;
+		}
+		int size = Math.max(capacity, kinds.length * 2);
+		kinds = copyOf(kinds, size);
+		types = copyOf(types, size);
+		flags = copyOf(flags, size);
+		colors = copyOf(colors, size);
+		densities = copyOf(densities, size);
+		frictions = copyOf(frictions, size);
+		restitutions = copyOf(restitutions, size);
+		xs = copyOf(xs, size);
+		ys = copyOf(ys, size);
+		halfWidths = copyOf(halfWidths, size);
+		halfHeights = copyOf(halfHeights, size);
+	}
+
+	private static byte[] copyOf(byte[] source, int size) {
+		byte[] result = new byte[size];
+		System.arraycopy(source, 0, result, 0, source.length);
+		return result;
+	}
+
+	private static int[] copyOf(int[] source, int size) {
+		int[] result = new int[size];
+		System.arraycopy(source, 0, result, 0, source.length);
+		return result;
+	}
+
+	private static float[] copyOf(float[] source, int size) {
+		float[] result = new float[size];
+		System.arraycopy(source, 0, result, 0, source.length);
+		return result;
+	}
+
+	private void write(OutputStream output) throws IOException {
+		DataOutputStream data = new DataOutputStream(output);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeInt(count);
+		data.write(kinds, 0, count);
+		data.write(types, 0, count);
+		data.write(flags, 0, count);
+		for (int i = 0; i < count; i++) {
+			data.writeInt(colors[i]);
+		}
+		writeFloats(data, densities);
+		writeFloats(data, frictions);
+		writeFloats(data, restitutions);
+		writeFloats(data, xs);
+		writeFloats(data, ys);
+		writeFloats(data, halfWidths);
+		writeFloats(data, halfHeights);
+		data.flush();
+	}
+
+	private void writeFloats(DataOutputStream data, float[] values) throws IOException {
+		for (int i = 0; i < count; i++) {
+			data.writeFloat(values[i]);
+		}
+	}
+
+}
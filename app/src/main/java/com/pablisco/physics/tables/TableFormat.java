@@ -0,0 +1,69 @@
+package com.pablisco.physics.tables;
+
+/**
+ * Constants shared by {@link TableCompiler} and {@link CompiledTable} to describe the compiled
+ * (binary) table format.
+ * <p/>
+ * The binary layout is a header followed by one block per field (structure of arrays) so the
+ * loader can read each field straight into a primitive array:
+ * <pre>
+ * int   MAGIC
+ * short VERSION
+ * int   count
+ * byte[count]  kinds
+ * byte[count]  body types (ordinal of {@link org.jbox2d.dynamics.BodyType})
+ * byte[count]  flags
+ * int[count]   colors
+ * float[count] density, friction, restitution
+ * float[count] x, y
+ * float[count] half width, half height
+ * </pre>
+ */
+final class TableFormat {
+
+	/**
+	 * "FTB1" in ASCII
+	 */
+	static final int MAGIC = 0x46544231;
+
+	static final short VERSION = 1;
+
+	/**
+	 * Bytes of the magic, the version and the count
+	 */
+	static final int HEADER_SIZE = 4 + 2 + 4;
+
+	/**
+	 * Bytes used by each object: kind, type and flags, color and seven floats
+	 */
+	static final int ENTRY_SIZE = 3 + 4 + 7 * 4;
+
+	/* kinds of objects */
+
+	static final byte KIND_BOX = 0;
+	static final byte KIND_INSET_BOX = 1;
+
+	/* flags */
+
+	/**
+	 * Position is a fraction of the world size
+	 */
+	static final byte FLAG_RELATIVE_POSITION = 1;
+
+	/**
+	 * Size is a fraction of the world size
+	 */
+	static final byte FLAG_RELATIVE_SIZE = 1 << 1;
+
+	/**
+	 * Same as {@link com.pablisco.physics.BasePhysicsObject#setHollow(boolean)}
+	 */
+	static final byte FLAG_HOLLOW = 1 << 2;
+
+	static final byte FLAG_INVISIBLE = 1 << 3;
+
+	private TableFormat() {
+		// no instances
+	}
+
+}
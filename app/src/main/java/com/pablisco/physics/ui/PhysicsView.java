@@ -8,6 +8,7 @@ import android.view.TextureView;
 
 import com.pablisco.physics.PhysicsEngine;
 import com.pablisco.threads.FrameThread;
+import com.pablisco.threads.Tracer;
 
 import static android.os.Process.THREAD_PRIORITY_DISPLAY;
 import static android.os.Process.setThreadPriority;
@@ -23,7 +24,10 @@ import static android.os.Process.setThreadPriority;
  */
 public class PhysicsView extends TextureView {
 
-	private PhysicsEngine engine = new PhysicsEngine();
+	/**
+	 * Created when first needed unless one is provided with {@link #setPhysicsEngine(PhysicsEngine)}
+	 */
+	private volatile PhysicsEngine engine;
 
 	public PhysicsView(Context context) {
 		super(context);
@@ -50,15 +54,22 @@ public class PhysicsView extends TextureView {
 
 		@Override
 		protected void frame(float frameTime) {
-			if (isAvailable()) {
+			final PhysicsEngine engine = PhysicsView.this.engine;
+			if (engine != null && isAvailable() && engine.shouldDraw()) {
 				// if the view is ready we draw the world in this thread and then post to the UI thread
+				Tracer.begin(Tracer.LOCK_CANVAS);
 				final Canvas canvas = lockCanvas(null);
+				Tracer.end(Tracer.LOCK_CANVAS);
+				Tracer.begin(Tracer.DRAW);
 				// clear canvas
 				canvas.drawColor(Color.BLACK);
 				// draw a nice picture of our world
 				engine.drawWorld(canvas);
+				Tracer.end(Tracer.DRAW);
 				// unlock and post the picture to the main thread
+				Tracer.begin(Tracer.UNLOCK_CANVAS);
 				unlockCanvasAndPost(canvas);
+				Tracer.end(Tracer.UNLOCK_CANVAS);
 			}
 		}
 	};
@@ -68,9 +79,31 @@ public class PhysicsView extends TextureView {
 	 * @return The internal engine
 	 */
 	public PhysicsEngine getPhysicsEngine() {
+		if (engine == null) {
+			engine = new PhysicsEngine();
+		}
 		return engine;
 	}
 
+	/**
+	 * Used to provide an engine created in advance (i.e. prepared with
+	 * {@link com.pablisco.physics.Preloader} while the layout is inflated)
+	 * @param engine to be drawn
+	 */
+	public void setPhysicsEngine(PhysicsEngine engine) {
+		this.engine = engine;
+		if (getWidth() + getHeight() > 0) {
+			engine.setWorldSize(getWidth(), getHeight());
+		}
+	}
+
+	@Override
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		super.onSizeChanged(width, height, oldWidth, oldHeight);
+		// objects with relative sizes and positions wait for this
+		getPhysicsEngine().setWorldSize(width, height);
+	}
+
 	@Override
 	protected void onAttachedToWindow() {
 		super.onAttachedToWindow();
@@ -2,8 +2,13 @@ package com.pablisco.threads;
 
 import android.util.Log;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
 import static com.pablisco.flattableball.BuildConfig.DEBUG;
 import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Created by pablisco on 25/01/15.
@@ -13,6 +18,11 @@ import static java.lang.System.currentTimeMillis;
  * <p>
  * The default rate is 60 but it can be changes upon starting it using {@link #start(int)}
  * </p>
+ * <p>
+ * By default each one has a thread of its own that sleeps between frames. With
+ * {@link #setExecutor(ScheduledExecutorService)} frames are scheduled in an executor instead, so
+ * many of them (i.e. engines simulating matches on a server) can share a few threads.
+ * </p>
  *
  */
 public abstract class FrameThread implements Runnable {
@@ -25,23 +35,44 @@ public abstract class FrameThread implements Runnable {
 	/**
 	 * Internal reference to the thread that runs this runnable
 	 */
-	private Thread thread = new Thread();
+	private volatile Thread thread;
+
+	/**
+	 * Optional, runs the frames instead of {@link #thread}
+	 */
+	private volatile ScheduledExecutorService executor;
+
+	/**
+	 * Frames being scheduled in {@link #executor}, if any
+	 */
+	private volatile ScheduledFrames scheduled;
+
+	/**
+	 * Held while running {@link #onStart(FrameThread)} and {@link #frame(float)}, so the frames
+	 * of a thread or task that has been stopped never overlap with the ones started afterwards
+	 */
+	private final Object frameLock = new Object();
 
 	/**
 	 * How many milliseconds each frame has to wait for
 	 */
-	private long frameWait;
+	private volatile long frameWait;
 
 	/**
 	 * The time in seconds (float) that each frame will take
 	 */
-	private float frameTime;
+	private volatile float frameTime;
 
 	/**
 	 * Default rate used in {@link #start()}
 	 */
 	private static final int DEFAULT_FRAME_RATE = 60;
 
+	/**
+	 * Frames are timed in whole milliseconds so they can't be any faster
+	 */
+	public static final int MAX_FRAME_RATE = 1000;
+
 	/**
 	 * This method has to be implemented by subclasses and is called 1/n of a second.
 	 * With n being the provided frame rate.
@@ -58,17 +89,50 @@ public abstract class FrameThread implements Runnable {
 		// no op
 	}
 
+	/**
+	 * Runs the frames in an executor from the next time it's started, instead of a thread of its
+	 * own. Each frame is scheduled when the previous one is done so they never overlap.
+	 * {@link #onStart(FrameThread)} and {@link #frame(float)} are called as usual, but they must
+	 * not change the thread (i.e. its name or priority) as it's shared.
+	 * @param executor to run the frames or null to use a thread
+	 */
+	public void setExecutor(ScheduledExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return true if the frames are run by an executor
+	 */
+	public boolean isScheduled() {
+		return executor != null;
+	}
+
 	/**
 	 * The main part of the thread. It'll run the {@link #frame(float)} method and then work out
 	 * how much it need to sleep before next execution.
 	 */
 	@Override
 	public final void run() {
-		onStart(this);
-		// we will run until the thread is stopped by being nullified
-		while (thread != null) {
+		synchronized (frameLock) {
+			if (thread != Thread.currentThread()) {
+				return;
+			}
+			onStart(this);
+		}
+		// we will run until the thread is stopped by being nullified or replaced
+		while (thread == Thread.currentThread()) {
+			// the rate can change at any time so it's read once per frame
+			final long frameWait = this.frameWait;
 			long start = currentTimeMillis();
-			frame(frameTime);
+			synchronized (frameLock) {
+				// it may have been stopped while waiting for the last frame
+				if (thread != Thread.currentThread()) {
+					return;
+				}
+				Tracer.begin(Tracer.FRAME);
+				frame(frameTime);
+				Tracer.end(Tracer.FRAME);
+			}
 			long elapsed = currentTimeMillis() - start;
 			// let's see if we overshoot on time
 			if (elapsed > frameWait) {
@@ -100,20 +164,39 @@ public abstract class FrameThread implements Runnable {
 	 * @param frameRate used to calculate the time for each frame
 	 */
 	public void start(int frameRate) {
-		// calculate the frame times
-		frameWait = (1000) / frameRate;
-		frameTime = frameWait / (1000.0f);
+		setFrameRate(frameRate);
 		if (DEBUG) {
 			Log.d(TAG, "Starting frame thread");
-			if (thread != null) {
+			if (thread != null || scheduled != null) {
 				Log.w(TAG, "We have already a thread running");
 			}
 		}
+		final ScheduledExecutorService executor = this.executor;
+		if (executor != null) {
+			thread = null;
+			scheduled = new ScheduledFrames(executor);
+			executor.execute(scheduled);
+			return;
+		}
+		scheduled = null;
 		thread = new Thread(this);
 		thread.setDaemon(true);
 		thread.start();
 	}
 
+	/**
+	 * Changes the rate of a running thread from the next frame
+	 * @param frameRate used to calculate the time for each frame, up to {@link #MAX_FRAME_RATE}
+	 */
+	public void setFrameRate(int frameRate) {
+		if (frameRate <= 0 || frameRate > MAX_FRAME_RATE) {
+			throw new IllegalArgumentException("Invalid frame rate: " + frameRate);
+		}
+		// calculate the frame times
+		frameWait = (1000) / frameRate;
+		frameTime = frameWait / (1000.0f);
+	}
+
 	/**
 	 * Alias of {@link #start(int)} with {@link #DEFAULT_FRAME_RATE} as parameter
 	 */
@@ -122,12 +205,76 @@ public abstract class FrameThread implements Runnable {
 	}
 
 	/**
-	 * Used to stop the thread
+	 * Used to stop the thread. It waits for the frame in progress, if any, so no frame runs after
+	 * it returns unless it's started again.
 	 */
 	public void stop() {
 		if (thread != null) {
 			thread = null;
 		}
+		scheduled = null;
+		synchronized (frameLock) {
+			// the frame in progress is done
+		}
+	}
+
+	/**
+	 * Runs one frame each time and schedules the next one. Deadlines are worked out from the
+	 * start instead of the end of the last frame so the rate doesn't drift. If it falls behind
+	 * more than a frame the missed ones are skipped, same as the thread does.
+	 */
+	private final class ScheduledFrames implements Runnable {
+
+		private final ScheduledExecutorService executor;
+
+		private boolean started;
+
+		/**
+		 * When the current frame should have started, in nanoseconds
+		 */
+		private long deadline;
+
+		ScheduledFrames(ScheduledExecutorService executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void run() {
+			synchronized (frameLock) {
+				// it may have been stopped while waiting for the last frame
+				if (scheduled != this) {
+					return;
+				}
+				if (!started) {
+					started = true;
+					deadline = System.nanoTime();
+					onStart(FrameThread.this);
+				}
+				Tracer.begin(Tracer.FRAME);
+				frame(frameTime);
+				Tracer.end(Tracer.FRAME);
+			}
+			if (scheduled != this) {
+				return;
+			}
+			final long period = MILLISECONDS.toNanos(frameWait);
+			final long now = System.nanoTime();
+			deadline += period;
+			if (now - deadline > period) {
+				final long frameSkip = (now - deadline) / period;
+				if (DEBUG) {
+					Log.d(TAG, "Scheduled frames took too long, skipping " + frameSkip + " frames");
+				}
+				deadline += frameSkip * period;
+			}
+			try {
+				executor.schedule(this, deadline - now, NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "Executor has been shut down, stopping", e);
+				scheduled = null;
+			}
+		}
+
 	}
 
 }
@@ -0,0 +1,93 @@
+package com.pablisco.threads;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns a trace saved by {@link TraceRecorder#writeTo(java.io.OutputStream)} into Chrome's JSON
+ * trace format, which can be opened in chrome://tracing.
+ * <p/>
+ * The recorder only keeps the last events, so the oldest ones may be the ends of sections whose
+ * beginnings were overwritten. Those ends are dropped so every slice is balanced.
+ * <p/>
+ * It has no android dependencies so it can be run on a desktop with {@link #main(String[])}.
+ */
+public class TraceConverter {
+
+	/**
+	 * @param trace binary trace
+	 * @param output where the JSON is written to, it's flushed but not closed
+	 * @throws IOException if the trace can't be read or it's not valid
+	 */
+	public static void convert(InputStream trace, Writer output) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(trace));
+		if (data.readInt() != TraceRecorder.MAGIC) {
+			throw new IOException("Not a trace file");
+		}
+		int version = data.readInt();
+		if (version != TraceRecorder.VERSION) {
+			throw new IOException("Unsupported trace version: " + version);
+		}
+		String[] names = new String[data.readInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = data.readUTF();
+		}
+		int count = data.readInt();
+		output.write("{\"traceEvents\":[");
+		// sections open in each thread
+		Map<Long, Integer> depths = new HashMap<>();
+		long origin = 0;
+		boolean first = true;
+		for (int i = 0; i < count; i++) {
+			long time = data.readLong();
+			long thread = data.readLong();
+			int event = data.readInt();
+			boolean begin = (event & 1) != 0;
+			Integer depth = depths.get(thread);
+			int open = depth == null ? 0 : depth;
+			if (!begin && open == 0) {
+				// its beginning was overwritten
+				continue;
+			}
+			depths.put(thread, begin ? open + 1 : open - 1);
+			if (first) {
+				origin = time;
+				first = false;
+			} else {
+				output.write(",");
+			}
+			int section = event >>> 1;
+			String name = section < names.length ? names[section] : "section " + section;
+			output.write(String.format(Locale.US,
+				"\n{\"name\":\"%s\",\"ph\":\"%s\",\"ts\":%.3f,\"pid\":0,\"tid\":%d}",
+				name, begin ? "B" : "E", (time - origin) / 1000.0, thread));
+		}
+		output.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		output.flush();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: TraceConverter <trace> <output.json>");
+			System.exit(1);
+		}
+		InputStream input = new FileInputStream(args[0]);
+		Writer output = new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8");
+		try {
+			convert(input, output);
+		} finally {
+			input.close();
+			output.close();
+		}
+	}
+
+}
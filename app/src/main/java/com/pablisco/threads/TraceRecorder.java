@@ -0,0 +1,99 @@
+package com.pablisco.threads;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of trace events used by {@link Tracer} when systrace is not available. Only the
+ * last events are kept, older ones are overwritten. Recording doesn't lock or allocate.
+ * <p/>
+ * The events can be saved with {@link #writeTo(OutputStream)} in a compact binary form and turned
+ * into Chrome's trace format (chrome://tracing) with {@link TraceConverter}.
+ * <p/>
+ * Binary format, big endian:
+ * <pre>
+ * int    magic ("FTR1")
+ * int    version
+ * int    number of sections, followed by the name of each one (modified UTF-8)
+ * int    number of events, followed by each event, oldest first:
+ *        long  time in nanoseconds
+ *        long  thread id
+ *        int   section id, shifted one bit to the left, plus 1 if it's the beginning
+ * </pre>
+ */
+public class TraceRecorder {
+
+	static final int MAGIC = 0x46545231;
+	static final int VERSION = 1;
+
+	private final int capacity;
+	private final int mask;
+
+	private final long[] times;
+	private final long[] threads;
+	private final int[] events;
+
+	private final AtomicLong cursor = new AtomicLong();
+
+	/**
+	 * @param capacity number of events kept, rounded up to a power of two
+	 */
+	public TraceRecorder(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		times = new long[size];
+		threads = new long[size];
+		events = new int[size];
+	}
+
+	void record(int section, boolean begin) {
+		final int index = (int) cursor.getAndIncrement() & mask;
+		times[index] = System.nanoTime();
+		threads[index] = Thread.currentThread().getId();
+		events[index] = section << 1 | (begin ? 1 : 0);
+	}
+
+	/**
+	 * @return number of events available, at most the capacity
+	 */
+	public int size() {
+		return (int) Math.min(cursor.get(), capacity);
+	}
+
+	/**
+	 * Removes all the events
+	 */
+	public void clear() {
+		cursor.set(0);
+	}
+
+	/**
+	 * Saves the events. Events recorded while writing may be partially written so it's better to
+	 * stop the threads being traced first.
+	 * @param output where the trace is written to, it's not closed
+	 * @throws IOException if the output fails
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		final long end = cursor.get();
+		final long start = Math.max(0, end - capacity);
+		DataOutputStream data = new DataOutputStream(output);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(Tracer.NAMES.length);
+		for (String name : Tracer.NAMES) {
+			data.writeUTF(name);
+		}
+		data.writeInt((int) (end - start));
+		for (long i = start; i < end; i++) {
+			int index = (int) i & mask;
+			data.writeLong(times[index]);
+			data.writeLong(threads[index]);
+			data.writeInt(events[index]);
+		}
+		data.flush();
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.pablisco.threads;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Marks sections of a frame (stepping, drawing, etc.) so it's possible to see where the time of
+ * each frame goes.
+ * <p/>
+ * On Android 4.3 and above sections are sent to systrace. Anywhere else (older devices or a
+ * desktop JVM) they are recorded by the {@link TraceRecorder} given to
+ * {@link #setRecorder(TraceRecorder)}, if any. Sections are identified with constants instead of
+ * strings so recording them doesn't allocate.
+ * <p/>
+ * Sections must be ended in the same thread they were started and in reverse order.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class Tracer {
+
+	public static final int FRAME = 0;
+	public static final int CREATE = 1;
+	public static final int DELETE = 2;
+	public static final int STEP = 3;
+	public static final int DRAW = 4;
+	public static final int LOCK_CANVAS = 5;
+	public static final int UNLOCK_CANVAS = 6;
+
+	/**
+	 * Names of the sections, by id
+	 */
+	static final String[] NAMES = {
+		"frame", "create", "delete", "step", "draw", "lockCanvas", "unlockCanvas"
+	};
+
+	/**
+	 * First version with android.os.Trace
+	 */
+	private static final int SYSTRACE_VERSION = Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+	/**
+	 * Whether android.os.Trace is available. The VM is checked first so {@link Build} is not
+	 * touched outside of Android.
+	 */
+	private static final boolean SYSTRACE =
+		System.getProperty("java.vm.name", "").contains("Dalvik")
+			&& Build.VERSION.SDK_INT >= SYSTRACE_VERSION;
+
+	private static volatile TraceRecorder recorder;
+
+	private Tracer() {
+		// no instances
+	}
+
+	/**
+	 * @param recorder used when systrace is not available or null to stop recording
+	 */
+	public static void setRecorder(TraceRecorder recorder) {
+		Tracer.recorder = recorder;
+	}
+
+	/**
+	 * @return true if sections go to systrace instead of the recorder
+	 */
+	public static boolean isSystrace() {
+		return SYSTRACE;
+	}
+
+	/**
+	 * Starts a section in the current thread
+	 * @param section one of the constants of this class
+	 */
+	public static void begin(int section) {
+		if (SYSTRACE) {
+			Trace.beginSection(NAMES[section]);
+		} else {
+			final TraceRecorder recorder = Tracer.recorder;
+			if (recorder != null) {
+				recorder.record(section, true);
+			}
+		}
+	}
+
+	/**
+	 * Ends the last section started in the current thread
+	 * @param section same value given to {@link #begin(int)}
+	 */
+	public static void end(int section) {
+		if (SYSTRACE) {
+			Trace.endSection();
+		} else {
+			final TraceRecorder recorder = Tracer.recorder;
+			if (recorder != null) {
+				recorder.record(section, false);
+			}
+		}
+	}
+
+}